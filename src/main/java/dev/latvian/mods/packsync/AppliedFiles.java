@@ -0,0 +1,74 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Checksum last written to each extra file path, so a manifest change is applied no matter how lightly files are verified
+public class AppliedFiles {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public static AppliedFiles load(Gson gson, Path localPackSyncDirectory) {
+		var path = localPackSyncDirectory.resolve("applied_files.json");
+		var checksums = new ConcurrentHashMap<String, String>();
+
+		try {
+			if (Files.exists(path)) {
+				var json = gson.fromJson(Files.readString(path), JsonObject.class);
+
+				if (json != null) {
+					for (var entry : json.entrySet()) {
+						checksums.put(entry.getKey(), entry.getValue().getAsString());
+					}
+				}
+			}
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to read Pack Sync applied file checksums: " + ex);
+		}
+
+		return new AppliedFiles(gson, path, checksums);
+	}
+
+	private final Gson gson;
+	private final Path path;
+	private final Map<String, String> checksums;
+
+	private AppliedFiles(Gson gson, Path path, Map<String, String> checksums) {
+		this.gson = gson;
+		this.path = path;
+		this.checksums = checksums;
+	}
+
+	public String get(String path) {
+		return checksums.get(path);
+	}
+
+	public void put(String path, String checksum) {
+		checksums.put(path, checksum);
+	}
+
+	public void remove(String path) {
+		checksums.remove(path);
+	}
+
+	public synchronized void save() {
+		var json = new JsonObject();
+
+		for (var key : checksums.keySet().stream().sorted().toList()) {
+			json.addProperty(key, checksums.get(key));
+		}
+
+		try {
+			ConfigMerge.write(path, gson.toJson(json).getBytes(StandardCharsets.UTF_8));
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to save Pack Sync applied file checksums: " + ex);
+		}
+	}
+}
@@ -7,8 +7,8 @@ public record Artifact(String artifact, String version) {
 	public static Artifact NONE = new Artifact("", "");
 
 	public static Artifact of(JsonObject json) {
-		var a = json.has("artifact") ? json.get("artifact").getAsString() : "";
-		var v = json.has("version") ? json.get("version").getAsString() : "";
+		var a = json.has("artifact") ? json.get("artifact").getAsString().intern() : "";
+		var v = json.has("version") ? json.get("version").getAsString().intern() : "";
 		return a.isEmpty() && v.isEmpty() ? NONE : new Artifact(a, v);
 	}
 
@@ -0,0 +1,494 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import org.slf4j.Logger;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class BatchSync {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	private record Instance(Path gameDir, Path localPackSyncDirectory, boolean linkExtraFiles, Verification modVerification, Verification extraFileVerification, int historySize, Set<String> disabledArtifacts, AppliedFiles appliedFiles, String packVersion, List<FileInfo> modList, Repository repository) {
+	}
+
+	private static class Pack {
+		private final String api;
+		private final String packCode;
+		private final HttpRequest.Builder requestBuilderBase;
+		private final List<Instance> instances;
+		private final List<Instance> outdated;
+		private String sessionId;
+		private String version;
+		private JsonObject syncJson;
+
+		private Pack(String api, String packCode, HttpRequest.Builder requestBuilderBase) {
+			this.api = api;
+			this.packCode = packCode;
+			this.requestBuilderBase = requestBuilderBase;
+			this.instances = new ArrayList<>();
+			this.outdated = new ArrayList<>();
+			this.sessionId = "";
+			this.version = "";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var gameDirs = new ArrayList<Path>();
+		var mcVersion = "";
+		var loaderVersion = "";
+		var loaderApiVersion = "";
+		var dryRun = false;
+
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+				case "--dry-run" -> dryRun = true;
+				case "--mc-version" -> mcVersion = args[++i];
+				case "--loader-version" -> loaderVersion = args[++i];
+				case "--loader-api-version" -> loaderApiVersion = args[++i];
+				default -> gameDirs.add(Path.of(args[i]));
+			}
+		}
+
+		if (gameDirs.isEmpty()) {
+			System.err.println("Usage: BatchSync [--dry-run] [--mc-version <version>] [--loader-version <version>] [--loader-api-version <version>] <game directory>...");
+			System.exit(1);
+			return;
+		}
+
+		System.exit(new BatchSync(gameDirs, mcVersion, loaderVersion, loaderApiVersion, dryRun).sync() ? 0 : 1);
+	}
+
+	private final List<Path> gameDirs;
+	private final String mcVersion;
+	private final String loaderVersion;
+	private final String loaderApiVersion;
+	private final boolean dryRun;
+	private final Transport transport;
+	private final Gson gson;
+	private final AtomicBoolean failed;
+	private final IIssueReporting issues;
+
+	public BatchSync(List<Path> gameDirs, String mcVersion, String loaderVersion, String loaderApiVersion, boolean dryRun) {
+		this.gameDirs = gameDirs;
+		this.mcVersion = mcVersion;
+		this.loaderVersion = loaderVersion;
+		this.loaderApiVersion = loaderApiVersion;
+		this.dryRun = dryRun;
+		this.transport = Transport.of(new JsonObject());
+		this.gson = new GsonBuilder().serializeNulls().disableHtmlEscaping().setPrettyPrinting().create();
+		this.failed = new AtomicBoolean(false);
+		this.issues = issue -> {
+			var message = issue.translationKey().formatted(issue.translationArgs().toArray());
+
+			if (issue.severity() == ModLoadingIssue.Severity.ERROR) {
+				failed.set(true);
+				LOGGER.error(message, issue.cause());
+			} else {
+				LOGGER.warn(message, issue.cause());
+			}
+		};
+	}
+
+	public boolean sync() throws Exception {
+		long startTime = System.currentTimeMillis();
+		var sharedDirectory = PackSync.sharedRepositoryDirectory();
+		Files.createDirectories(sharedDirectory);
+
+		var shared = new Repository(sharedDirectory, sharedDirectory, gson);
+		var packs = new LinkedHashMap<String, Pack>();
+
+		for (var gameDir : gameDirs) {
+			try {
+				loadInstance(gameDir.toAbsolutePath().normalize(), shared, packs);
+			} catch (Exception ex) {
+				issues.addIssue(ModLoadingIssue.error("Failed to load Pack Sync instance %s!", gameDir.toString()).withCause(ex).withAffectedPath(gameDir));
+			}
+		}
+
+		var peers = PackSync.peers(new JsonObject());
+		var metrics = new SyncMetrics();
+		int updated = 0;
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor(); var progress = new SyncProgress(false, metrics); var scope = new TaskScope(executor, issues)) {
+			var scans = new ArrayList<TaskScope.Task>();
+			scans.add(scope.fork("repository scan", () -> shared.scan(scope, issues)));
+
+			for (var pack : packs.values()) {
+				for (var instance : pack.instances) {
+					scans.add(scope.fork("scan " + instance.gameDir(), () -> instance.repository().scan(scope, issues)));
+				}
+			}
+
+			var scanTasks = scans.toArray(TaskScope.Task[]::new);
+
+			for (var pack : packs.values()) {
+				scope.fork("fetch " + pack.packCode, () -> fetch(pack), scanTasks);
+			}
+
+			if (!scope.join()) {
+				return false;
+			}
+
+			var plans = new IdentityHashMap<Instance, UpdatePlan>();
+
+			for (var pack : packs.values()) {
+				if (pack.syncJson == null) {
+					continue;
+				}
+
+				var mods = remoteFiles(pack.syncJson, "mods");
+				var extraFiles = remoteFiles(pack.syncJson, "extra_files");
+
+				for (var instance : pack.outdated) {
+					var instanceMods = mods.stream().filter(file -> !PackSync.isDisabled(file.fileInfo(), instance.disabledArtifacts())).toList();
+					var plan = UpdatePlan.create(scope, issues, instance.repository(), instance.gameDir(), instance.linkExtraFiles(), instance.extraFileVerification(), instance.appliedFiles(), instanceMods, extraFiles);
+
+					if (plan != null) {
+						LOGGER.info("Plan for " + instance.gameDir() + ":");
+						plan.log(UpdatePlan.loadThroughput(gson, instance.localPackSyncDirectory()));
+						plans.put(instance, plan);
+					}
+				}
+			}
+
+			if (!UpdatePlan.checkDiskSpace(plans.values(), issues)) {
+				return false;
+			} else if (dryRun) {
+				LOGGER.info("Dry run, not applying updates to %,d instances".formatted(plans.size()));
+				return !failed.get();
+			}
+
+			for (var entry : plans.entrySet()) {
+				entry.getValue().discardModifiedBlobs(entry.getKey().repository());
+			}
+
+			var downloads = new HashMap<String, TaskScope.Task>();
+			var downloadScopes = new ArrayList<TaskScope>();
+			var instanceScopes = new LinkedHashMap<Instance, TaskScope>();
+
+			// Every download and every instance gets its own scope, so a failure only cancels the instances that depend on it
+			try {
+				for (var pack : packs.values()) {
+					if (pack.syncJson == null) {
+						continue;
+					}
+
+					var downloader = new Downloader(transport, pack.requestBuilderBase, peers, issues, progress);
+
+					for (var instance : pack.outdated) {
+						var plan = plans.get(instance);
+
+						if (plan == null) {
+							continue;
+						}
+
+						var dependencies = new ArrayList<TaskScope.Task>();
+
+						for (var file : plan.downloads()) {
+							var fileInfo = file.fileInfo();
+							var repository = file.local() ? instance.repository() : shared;
+							var fileName = (file.path().isEmpty() ? fileInfo.filename() : file.path()) + " (" + fileInfo.checksum() + ")";
+
+							dependencies.add(downloads.computeIfAbsent(file.local() ? instance.gameDir() + ":" + fileInfo.checksum() : fileInfo.checksum(), key -> {
+								var downloadScope = scope.child();
+								downloadScopes.add(downloadScope);
+
+								return downloadScope.fork(fileName, () -> {
+									if (downloader.downloadToRepository(repository, file, fileName) == null) {
+										throw new CancellationException("Failed to download " + fileName);
+									}
+								});
+							}));
+						}
+
+						var instanceScope = scope.child();
+						instanceScopes.put(instance, instanceScope);
+						instanceScope.fork("apply " + instance.gameDir(), () -> apply(instanceScope, pack, instance, plan, downloader), dependencies.toArray(TaskScope.Task[]::new));
+						updated++;
+					}
+				}
+
+				LOGGER.info("Downloading %,d distinct files for %,d instances...".formatted(downloads.size(), updated));
+
+				var applied = new ArrayList<Instance>();
+
+				for (var entry : instanceScopes.entrySet()) {
+					if (entry.getValue().join()) {
+						applied.add(entry.getKey());
+					} else {
+						LOGGER.error("Failed to update " + entry.getKey().gameDir() + ", it will be updated on next launch");
+						failed.set(true);
+					}
+				}
+
+				for (var instance : applied) {
+					UpdatePlan.saveThroughput(gson, instance.localPackSyncDirectory(), progress.throughput());
+				}
+			} finally {
+				for (var instanceScope : instanceScopes.values()) {
+					instanceScope.close();
+				}
+
+				for (var downloadScope : downloadScopes) {
+					downloadScope.close();
+				}
+			}
+		} finally {
+			for (var pack : packs.values()) {
+				if (!pack.sessionId.isEmpty()) {
+					PackSync.endSession(transport, pack.requestBuilderBase, pack.api, metrics);
+				}
+			}
+		}
+
+		LOGGER.info("Synced %,d instances of %,d packs in %,d ms, HTTP %s".formatted(updated, packs.size(), System.currentTimeMillis() - startTime, transport.toJson()));
+		return !failed.get();
+	}
+
+	private void loadInstance(Path gameDir, Repository shared, LinkedHashMap<String, Pack> packs) throws Exception {
+		var configFile = gameDir.resolve("mods").resolve("pack-sync.json");
+
+		if (Files.notExists(configFile)) {
+			issues.addIssue(ModLoadingIssue.error("Pack Sync config file not found!").withAffectedPath(configFile));
+			return;
+		}
+
+		JsonObject config;
+
+		try (var reader = Files.newBufferedReader(configFile)) {
+			config = gson.fromJson(reader, JsonObject.class);
+		}
+
+		var localPackSyncDirectory = gameDir.resolve("local").resolve("pack-sync");
+		var localRepository = localPackSyncDirectory.resolve("repository");
+		Files.createDirectories(localRepository);
+
+		var localConfigFile = localPackSyncDirectory.resolve("config.json");
+		var localConfigJson = new JsonObject();
+
+		if (Files.exists(localConfigFile)) {
+			try (var reader = Files.newBufferedReader(localConfigFile)) {
+				localConfigJson = gson.fromJson(reader, JsonObject.class);
+			}
+		}
+
+		if (localConfigJson.has("pause_updates") && localConfigJson.get("pause_updates").getAsBoolean() || localConfigJson.has("pinned_version")) {
+			LOGGER.info("Skipping " + gameDir + ", pack updates are paused or pinned");
+			return;
+		}
+
+		var packVersion = "";
+		var modList = new ArrayList<FileInfo>();
+		var versionFile = localPackSyncDirectory.resolve("version.json");
+
+		if (Files.exists(versionFile)) {
+			try (var reader = Files.newBufferedReader(versionFile)) {
+				var versionJson = gson.fromJson(reader, JsonObject.class);
+				packVersion = versionJson.has("version") ? versionJson.get("version").getAsString() : "";
+
+				if (versionJson.get("mods") instanceof JsonArray modsJson) {
+					for (var entry : modsJson) {
+						modList.add(new FileInfo(entry.getAsJsonObject()));
+					}
+				}
+			}
+		}
+
+		var api = PackSync.api(config);
+		var packCode = config.get("pack_code").getAsString();
+		var auth = PackSync.auth(localConfigJson);
+		var linkExtraFiles = localConfigJson.has("link_extra_files") && localConfigJson.get("link_extra_files").getAsBoolean();
+		var modVerification = Verification.of(localConfigJson, "mod_verification", Verification.SIZE);
+		var extraFileVerification = Verification.of(localConfigJson, "extra_file_verification", Verification.FULL);
+		var historySize = localConfigJson.has("history_size") ? localConfigJson.get("history_size").getAsInt() : 5;
+		var disabledArtifacts = new HashSet<String>();
+
+		if (localConfigJson.get("disabled_artifacts") instanceof JsonObject disabledArtifactsJson) {
+			for (var e : disabledArtifactsJson.entrySet()) {
+				if (e.getValue().getAsBoolean()) {
+					disabledArtifacts.add(e.getKey());
+				}
+			}
+		}
+
+		var pack = packs.computeIfAbsent(api + "\n" + packCode + "\n" + auth, key -> new Pack(api, packCode, transport.requestBuilder(auth)));
+		pack.instances.add(new Instance(gameDir, localPackSyncDirectory, linkExtraFiles, modVerification, extraFileVerification, historySize, disabledArtifacts, AppliedFiles.load(gson, localPackSyncDirectory), packVersion, modList, shared.withLocalDirectory(localRepository)));
+	}
+
+	private void fetch(Pack pack) {
+		var packCode = URLEncoder.encode(pack.packCode, StandardCharsets.UTF_8);
+
+		try {
+			var versionRequest = transport.send(pack.requestBuilderBase.copy().uri(URI.create(pack.api + "/version/" + packCode)).GET().build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+
+			if (versionRequest.statusCode() / 100 != 2) {
+				issues.addIssue(ModLoadingIssue.error("Failed to update %s with error %d - %s!", pack.packCode, versionRequest.statusCode(), versionRequest.body()));
+				return;
+			}
+
+			pack.version = versionRequest.body().trim();
+			pack.sessionId = versionRequest.headers().firstValue("X-Pack-Sync-Session-ID").orElse("");
+
+			if (!pack.sessionId.isEmpty()) {
+				pack.requestBuilderBase.header("X-Pack-Sync-Session-ID", pack.sessionId);
+			}
+
+			for (var instance : pack.instances) {
+				if (!instance.packVersion().equals(pack.version) || !instance.modList().stream().allMatch(fileInfo -> {
+					if (PackSync.isDisabled(fileInfo, instance.disabledArtifacts())) {
+						return true;
+					}
+
+					var file = instance.repository().get(fileInfo.checksum());
+					return file != null && instance.repository().verify(file, instance.modVerification(), issues);
+				})) {
+					pack.outdated.add(instance);
+				}
+			}
+
+			if (pack.outdated.isEmpty()) {
+				LOGGER.info("All %,d instances of %s are up to date ('%s')".formatted(pack.instances.size(), pack.packCode, pack.version));
+				return;
+			}
+
+			var requestJson = PackSync.syncRequest("", mcVersion, loaderVersion, loaderApiVersion, false, true);
+			var syncRequest = transport.send(pack.requestBuilderBase.copy().uri(URI.create(pack.api + "/sync/" + packCode)).POST(HttpRequest.BodyPublishers.ofString(requestJson.toString(), StandardCharsets.UTF_8)).build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+
+			if (syncRequest.statusCode() / 100 != 2) {
+				issues.addIssue(ModLoadingIssue.error("Failed to update %s with error %d - %s!", pack.packCode, syncRequest.statusCode(), syncRequest.body()));
+				return;
+			}
+
+			var syncJson = gson.fromJson(syncRequest.body(), JsonObject.class);
+
+			if (syncJson.has("warnings")) {
+				for (var entry : syncJson.get("warnings").getAsJsonArray()) {
+					issues.addIssue(ModLoadingIssue.warning(entry.getAsString()));
+				}
+			}
+
+			if (syncJson.has("errors")) {
+				for (var entry : syncJson.get("errors").getAsJsonArray()) {
+					issues.addIssue(ModLoadingIssue.error(entry.getAsString()));
+				}
+
+				return;
+			}
+
+			LOGGER.info("Updating %,d/%,d instances of %s to '%s'".formatted(pack.outdated.size(), pack.instances.size(), pack.packCode, pack.version));
+			pack.syncJson = syncJson;
+		} catch (Exception ex) {
+			if (!TaskScope.isCancellation(ex)) {
+				issues.addIssue(ModLoadingIssue.error("Failed to update %s!", pack.packCode).withCause(ex));
+			}
+		}
+	}
+
+	private static List<RemoteFile> remoteFiles(JsonObject syncJson, String key) {
+		var list = new ArrayList<RemoteFile>();
+
+		if (syncJson.get(key) instanceof JsonArray array) {
+			for (var entry : array) {
+				list.add(new RemoteFile(entry.getAsJsonObject()));
+			}
+		}
+
+		return list;
+	}
+
+	private void apply(TaskScope scope, Pack pack, Instance instance, UpdatePlan plan, Downloader downloader) throws Exception {
+		var gameDir = instance.gameDir();
+		var syncJson = pack.syncJson;
+		// Disabled mods weren't planned, but they're still part of the pack version
+		var mods = remoteFiles(syncJson, "mods");
+		var extraFiles = plan.extraFiles().stream().map(UpdatePlan.Entry::file).toList();
+
+		try (var instanceScope = scope.child()) {
+			for (var entry : plan.extraFiles()) {
+				var file = entry.file();
+
+				switch (entry.action()) {
+					// There's no game running to defer to, apply them along with the rest
+					case DEFER -> instanceScope.fork(file.path(), () -> PackSync.applyExtraFile(instanceScope, issues, instance.repository(), downloader, gameDir, instance.linkExtraFiles(), instance.extraFileVerification(), instance.appliedFiles(), file));
+					case DOWNLOAD, REUSE, DELETE -> instanceScope.fork(file.path(), () -> PackSync.replaceExtraFile(instanceScope, issues, instance.repository(), downloader, gameDir, instance.linkExtraFiles(), instance.extraFileVerification(), instance.appliedFiles(), file));
+					case KEEP -> {
+					}
+				}
+			}
+
+			if (syncJson.has("server_icon")) {
+				var file = new RemoteFile(syncJson.get("server_icon").getAsJsonObject());
+
+				instanceScope.fork("server-icon.png", () -> {
+					var path = gameDir.resolve("server-icon.png");
+
+					if (file.replace(path, issues) && !downloader.download(path, "server-icon.png", file.fileInfo().size(), file.url(), file.codec())) {
+						instanceScope.fail();
+					}
+				});
+			}
+
+			if (syncJson.has("options")) {
+				instanceScope.fork("options.txt", () -> PackSync.updateOptions(gameDir.resolve("options.txt"), syncJson.get("options").getAsJsonArray(), issues));
+			}
+
+			if (syncJson.has("server_properties")) {
+				instanceScope.fork("server.properties", () -> PackSync.updateServerProperties(gameDir.resolve("server.properties"), syncJson.get("server_properties").getAsJsonArray(), issues));
+			}
+
+			boolean updated = instanceScope.join();
+			instance.appliedFiles().save();
+
+			// Fails this instance's scope, a cancelled subtask may not have reported an error of its own
+			if (!updated) {
+				throw new CancellationException("Failed to update " + gameDir);
+			}
+		}
+
+		var modList = new ArrayList<FileInfo>();
+
+		for (var mod : mods) {
+			modList.add(mod.fileInfo());
+		}
+
+		modList.sort((a, b) -> a.filename().compareToIgnoreCase(b.filename()));
+
+		PackSync.writeVersionFile(gson, instance.localPackSyncDirectory().resolve("version.json"), pack.version, modList);
+
+		if (syncJson.has("extra_files")) {
+			// Deferred files were applied along with the rest, nothing is left for the next launch
+			DeferredDownloader.save(gson, instance.localPackSyncDirectory(), List.of());
+		}
+
+		// Batch sync requests don't send the instance version, so the response is complete and there's nothing to build on
+		var history = new VersionHistory(instance.localPackSyncDirectory().resolve("history"), gson, instance.historySize());
+		var snapshot = history.previous("");
+
+		if (snapshot != null) {
+			history.save(snapshot.update(pack.version, System.currentTimeMillis(), mods, extraFiles));
+		}
+		LOGGER.info("Updated " + gameDir + " '" + instance.packVersion() + "' -> '" + pack.version + "'");
+	}
+}
@@ -0,0 +1,305 @@
+package dev.latvian.mods.packsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+public class BodyWriter implements Flow.Subscriber<List<ByteBuffer>> {
+	private static final int WINDOW = 16;
+	private static final int BUFFER_SIZE = 65536;
+	private static final List<ByteBuffer> END = new ArrayList<>(0);
+
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
+	// Returns the bytes received, before decoding, progress is reported in decoded bytes
+	public static long write(Flow.Publisher<List<ByteBuffer>> body, FileChannel channel, Codec codec, LongConsumer progress) throws IOException, InterruptedException {
+		var writer = new BodyWriter(false);
+		body.subscribe(writer);
+
+		try {
+			switch (codec) {
+				case NONE -> writer.copyTo(channel, progress);
+				case GZIP -> writer.gunzipTo(channel, progress);
+				case DEFLATE -> writer.inflateTo(channel, progress);
+			}
+
+			return writer.received;
+		} finally {
+			writer.cancel();
+		}
+	}
+
+	public static void discard(Flow.Publisher<List<ByteBuffer>> body) {
+		body.subscribe(new BodyWriter(true));
+	}
+
+	private final boolean discard;
+	private final BlockingQueue<List<ByteBuffer>> queue;
+	private volatile Flow.Subscription subscription;
+	private volatile Throwable error;
+	private Iterator<ByteBuffer> current;
+	private boolean ended;
+	private ByteBuffer pending;
+	private ByteBuffer in;
+	private long received;
+
+	private BodyWriter(boolean discard) {
+		this.discard = discard;
+		this.queue = new LinkedBlockingQueue<>();
+	}
+
+	@Override
+	public void onSubscribe(Flow.Subscription subscription) {
+		this.subscription = subscription;
+
+		if (discard) {
+			subscription.cancel();
+		} else {
+			subscription.request(WINDOW);
+		}
+	}
+
+	@Override
+	public void onNext(List<ByteBuffer> item) {
+		queue.add(item);
+	}
+
+	@Override
+	public void onError(Throwable throwable) {
+		error = throwable;
+		queue.add(END);
+	}
+
+	@Override
+	public void onComplete() {
+		queue.add(END);
+	}
+
+	private void cancel() {
+		var s = subscription;
+
+		if (s != null && !ended) {
+			s.cancel();
+		}
+	}
+
+	private ByteBuffer next(boolean wait) throws IOException, InterruptedException {
+		while (true) {
+			if (current != null && current.hasNext()) {
+				var buffer = current.next();
+				received += buffer.remaining();
+				return buffer;
+			} else if (ended) {
+				return null;
+			}
+
+			var item = wait ? queue.take() : queue.poll();
+
+			if (item == null) {
+				return null;
+			} else if (item == END) {
+				ended = true;
+
+				if (error != null) {
+					throw error instanceof IOException io ? io : new IOException(error);
+				}
+
+				return null;
+			}
+
+			subscription.request(1L);
+			current = item.iterator();
+		}
+	}
+
+	private long copyTo(FileChannel channel, LongConsumer progress) throws IOException, InterruptedException {
+		long written = 0L;
+
+		for (var buffer = next(true); buffer != null; buffer = next(true)) {
+			while (buffer.hasRemaining()) {
+				int n = channel.write(buffer);
+				written += n;
+				progress.accept(n);
+			}
+		}
+
+		return written;
+	}
+
+	private boolean fill() throws IOException, InterruptedException {
+		in.compact();
+		boolean added = false;
+
+		try {
+			while (in.hasRemaining()) {
+				if (pending == null || !pending.hasRemaining()) {
+					pending = next(!added);
+
+					if (pending == null) {
+						break;
+					}
+
+					continue;
+				}
+
+				int n = Math.min(in.remaining(), pending.remaining());
+				in.put(pending.slice(pending.position(), n));
+				pending.position(pending.position() + n);
+				added = true;
+			}
+		} finally {
+			in.flip();
+		}
+
+		return added;
+	}
+
+	private void ensure(int bytes) throws IOException, InterruptedException {
+		while (in.remaining() < bytes) {
+			if (!fill()) {
+				throw new EOFException("Unexpected end of compressed stream");
+			}
+		}
+	}
+
+	private void skip(int bytes) throws IOException, InterruptedException {
+		while (bytes > 0) {
+			ensure(1);
+			int n = Math.min(bytes, in.remaining());
+			in.position(in.position() + n);
+			bytes -= n;
+		}
+	}
+
+	private void readHeader() throws IOException, InterruptedException {
+		ensure(10);
+
+		if ((in.get() & 0xFF) != 0x1F || (in.get() & 0xFF) != 0x8B) {
+			throw new ZipException("Not in GZIP format");
+		} else if (in.get() != 8) {
+			throw new ZipException("Unsupported compression method");
+		}
+
+		int flags = in.get() & 0xFF;
+		skip(6);
+
+		if ((flags & FEXTRA) != 0) {
+			ensure(2);
+			skip(in.getShort() & 0xFFFF);
+		}
+
+		if ((flags & FNAME) != 0) {
+			do {
+				ensure(1);
+			} while (in.get() != 0);
+		}
+
+		if ((flags & FCOMMENT) != 0) {
+			do {
+				ensure(1);
+			} while (in.get() != 0);
+		}
+
+		if ((flags & FHCRC) != 0) {
+			skip(2);
+		}
+	}
+
+	// The inflater reads in directly, so whatever follows the stream is left in it
+	private long inflate(Inflater inflater, ByteBuffer out, CRC32 crc, FileChannel channel, LongConsumer progress) throws IOException, InterruptedException, DataFormatException {
+		long written = 0L;
+		inflater.reset();
+		inflater.setInput(in);
+
+		while (!inflater.finished()) {
+			if (inflater.inflate(out) == 0 && !inflater.finished()) {
+				if (inflater.needsDictionary()) {
+					throw new ZipException("Unsupported deflate dictionary");
+				} else if (inflater.needsInput()) {
+					if (!fill()) {
+						throw new EOFException("Unexpected end of compressed stream");
+					}
+
+					inflater.setInput(in);
+				}
+			}
+
+			if (!out.hasRemaining() || inflater.finished()) {
+				out.flip();
+
+				if (crc != null) {
+					crc.update(out.duplicate());
+				}
+
+				while (out.hasRemaining()) {
+					int n = channel.write(out);
+					written += n;
+					progress.accept(n);
+				}
+
+				out.clear();
+			}
+		}
+
+		return written;
+	}
+
+	private long inflateTo(FileChannel channel, LongConsumer progress) throws IOException, InterruptedException {
+		in = ByteBuffer.allocateDirect(BUFFER_SIZE).flip();
+		var inflater = new Inflater();
+
+		try {
+			// zlib checks the Adler-32 trailer itself
+			return inflate(inflater, ByteBuffer.allocateDirect(BUFFER_SIZE), null, channel, progress);
+		} catch (DataFormatException ex) {
+			throw new ZipException(ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+	}
+
+	private long gunzipTo(FileChannel channel, LongConsumer progress) throws IOException, InterruptedException {
+		in = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN).flip();
+		var out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		var inflater = new Inflater(true);
+		var crc = new CRC32();
+		long written = 0L;
+
+		try {
+			do {
+				readHeader();
+				crc.reset();
+				written += inflate(inflater, out, crc, channel, progress);
+				ensure(8);
+
+				if ((in.getInt() & 0xFFFFFFFFL) != crc.getValue()) {
+					throw new ZipException("Corrupt GZIP trailer");
+				} else if ((in.getInt() & 0xFFFFFFFFL) != (inflater.getBytesWritten() & 0xFFFFFFFFL)) {
+					throw new ZipException("Corrupt GZIP trailer");
+				}
+			} while (in.hasRemaining() || fill());
+		} catch (DataFormatException ex) {
+			throw new ZipException(ex.getMessage());
+		} finally {
+			inflater.end();
+		}
+
+		return written;
+	}
+}
@@ -3,14 +3,25 @@ package dev.latvian.mods.packsync;
 import net.neoforged.fml.ModLoadingIssue;
 import net.neoforged.neoforgespi.IIssueReporting;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.SplittableRandom;
 
 public interface Checksum {
 	byte[] HEX_ARRAY = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	byte[] NO_DIGEST = new byte[0];
+	int SAMPLE_SIZE = 16384;
+	int SAMPLE_COUNT = 8;
+	int EOCD_SIZE = 22;
 
 	static String toHex(byte[] array) {
 		var chars = new byte[array.length * 2];
@@ -24,18 +35,57 @@ public interface Checksum {
 		return new String(chars, StandardCharsets.UTF_8);
 	}
 
+	static boolean matches(byte[] digest, String hex) {
+		if (hex.length() != digest.length * 2) {
+			return false;
+		}
+
+		for (int i = 0; i < digest.length; i++) {
+			int hi = Character.digit(hex.charAt(i * 2), 16);
+			int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+			if (hi == -1 || lo == -1 || digest[i] != (byte) ((hi << 4) | lo)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	static String algorithm(String checksum) {
+		return switch (checksum.length()) {
+			case 40 -> "SHA-1";
+			case 64 -> "SHA-256";
+			case 128 -> "SHA-512";
+			default -> "MD5";
+		};
+	}
+
+	static String algorithm(byte[] digest) {
+		return switch (digest.length) {
+			case 20 -> "SHA-1";
+			case 32 -> "SHA-256";
+			case 64 -> "SHA-512";
+			default -> "MD5";
+		};
+	}
+
 	static ByteBuffer allocateTempBuffer(int maxBufferSize, long fileSize) {
 		return ByteBuffer.allocate(Math.min(maxBufferSize, (int) Math.min(Integer.MAX_VALUE, fileSize)));
 	}
 
-	static String checksum(Path path, String algorithm, IIssueReporting issues) {
-		if (Files.notExists(path)) {
-			return "";
+	static MessageDigest messageDigest(String algorithm) throws IOException {
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IOException(ex);
 		}
+	}
 
+	static byte[] digest(Path path, String algorithm) throws IOException {
 		try (var channel = Files.newByteChannel(path)) {
-			var md = MessageDigest.getInstance(algorithm);
-			var buf = allocateTempBuffer(32768, Files.size(path));
+			var md = messageDigest(algorithm);
+			var buf = allocateTempBuffer(32768, channel.size());
 
 			while (channel.read(buf) != -1) {
 				buf.flip();
@@ -43,7 +93,17 @@ public interface Checksum {
 				buf.clear();
 			}
 
-			return toHex(md.digest());
+			return md.digest();
+		}
+	}
+
+	static String checksum(Path path, String algorithm, IIssueReporting issues) {
+		if (Files.notExists(path)) {
+			return "";
+		}
+
+		try {
+			return toHex(digest(path, algorithm));
 		} catch (Exception ex) {
 			issues.addIssue(ModLoadingIssue.error("Failed to read checksum of file %s!", path.getFileName().toString()).withCause(ex).withAffectedPath(path));
 		}
@@ -51,6 +111,102 @@ public interface Checksum {
 		return "";
 	}
 
+	private static void readSample(FileChannel channel, ByteBuffer buf, long position, MessageDigest md) throws IOException {
+		buf.clear();
+
+		while (buf.hasRemaining()) {
+			if (channel.read(buf, position + buf.position()) == -1) {
+				break;
+			}
+		}
+
+		md.update(buf.flip());
+	}
+
+	// Hashes the size, the first and last sample and a few chunks at offsets seeded by the size, so a file always gets the same digest
+	static byte[] sampledDigest(Path path) throws IOException {
+		try (var channel = FileChannel.open(path)) {
+			var md = messageDigest("MD5");
+			var buf = ByteBuffer.allocate(SAMPLE_SIZE);
+			long size = channel.size();
+			md.update(buf.putLong(size).flip());
+
+			if (size <= (SAMPLE_COUNT + 2L) * SAMPLE_SIZE) {
+				for (long position = 0L; position < size; position += SAMPLE_SIZE) {
+					readSample(channel, buf, position, md);
+				}
+			} else {
+				var random = new SplittableRandom(size);
+				var offsets = new long[SAMPLE_COUNT + 2];
+				offsets[1] = size - SAMPLE_SIZE;
+
+				for (int i = 2; i < offsets.length; i++) {
+					offsets[i] = random.nextLong(SAMPLE_SIZE, size - SAMPLE_SIZE * 2L);
+				}
+
+				Arrays.sort(offsets);
+
+				for (var offset : offsets) {
+					readSample(channel, buf, offset, md);
+				}
+			}
+
+			return md.digest();
+		}
+	}
+
+	static byte[] sampledDigest(Path path, IIssueReporting issues) {
+		if (Files.notExists(path)) {
+			return NO_DIGEST;
+		}
+
+		try {
+			return sampledDigest(path);
+		} catch (Exception ex) {
+			issues.addIssue(ModLoadingIssue.error("Failed to read checksum of file %s!", path.getFileName().toString()).withCause(ex).withAffectedPath(path));
+		}
+
+		return NO_DIGEST;
+	}
+
+	static boolean isValidZip(Path path, String filename) throws IOException {
+		var ext = Repository.extension(filename).toLowerCase(Locale.ROOT);
+
+		if (!ext.equals(".jar") && !ext.equals(".zip")) {
+			return true;
+		}
+
+		try (var channel = FileChannel.open(path)) {
+			long size = channel.size();
+			var buf = ByteBuffer.allocate((int) Math.min(size, EOCD_SIZE + 65535L)).order(ByteOrder.LITTLE_ENDIAN);
+			long start = size - buf.capacity();
+
+			while (buf.hasRemaining()) {
+				if (channel.read(buf, start + buf.position()) == -1) {
+					return false;
+				}
+			}
+
+			for (int i = buf.capacity() - EOCD_SIZE; i >= 0; i--) {
+				if (buf.getInt(i) == 0x06054B50 && (buf.getShort(i + 20) & 0xFFFF) == buf.capacity() - i - EOCD_SIZE) {
+					long cdSize = buf.getInt(i + 12) & 0xFFFFFFFFL;
+					long cdOffset = buf.getInt(i + 16) & 0xFFFFFFFFL;
+
+					if (cdOffset == 0xFFFFFFFFL || cdSize == 0L) {
+						return true;
+					} else if (cdOffset + cdSize > start + i) {
+						return false;
+					}
+
+					var signature = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+					return channel.read(signature, cdOffset) == 4 && signature.getInt(0) == 0x02014B50;
+				}
+			}
+		}
+
+		return false;
+	}
+
 	static String md5(Path path, IIssueReporting issues) {
 		return checksum(path, "MD5", issues);
 	}
@@ -0,0 +1,72 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.JsonObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+public enum Codec {
+	NONE("", ""),
+	GZIP("gzip", ".gz"),
+	DEFLATE("deflate", ".zz");
+
+	public static final List<Codec> SUPPORTED = List.of(GZIP, DEFLATE);
+
+	public static Codec of(JsonObject json) {
+		if (json.has("codec")) {
+			return of(json.get("codec").getAsString());
+		}
+
+		return json.has("gzip") && json.get("gzip").getAsBoolean() ? GZIP : NONE;
+	}
+
+	// Also takes the constant name so that "none" works on the command line
+	public static Codec of(String id) {
+		for (var codec : values()) {
+			if (codec.id.equals(id) || codec.name().equalsIgnoreCase(id)) {
+				return codec;
+			}
+		}
+
+		throw new IllegalArgumentException("Unsupported codec '" + id + "', expected none, gzip or deflate");
+	}
+
+	public final String id;
+	public final String extension;
+
+	Codec(String id, String extension) {
+		this.id = id;
+		this.extension = extension;
+	}
+
+	// Older clients only know the gzip flag, so gzip is written that way and anything else by name
+	public void write(JsonObject json) {
+		if (this == GZIP) {
+			json.addProperty("gzip", true);
+		} else if (this != NONE) {
+			json.addProperty("codec", id);
+		}
+	}
+
+	public InputStream decode(InputStream in) throws IOException {
+		return switch (this) {
+			case NONE -> in;
+			case GZIP -> new GZIPInputStream(in, 65536);
+			case DEFLATE -> new InflaterInputStream(in);
+		};
+	}
+
+	public OutputStream encode(OutputStream out) throws IOException {
+		return switch (this) {
+			case NONE -> out;
+			case GZIP -> new GZIPOutputStream(out, 65536);
+			case DEFLATE -> new DeflaterOutputStream(out);
+		};
+	}
+}
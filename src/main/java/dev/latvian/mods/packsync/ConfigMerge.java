@@ -0,0 +1,115 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+public class ConfigMerge {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public static boolean merge(Map<String, String> values, JsonArray entries) {
+		boolean changed = false;
+
+		for (var entry : entries) {
+			var json = entry.getAsJsonObject();
+			var key = json.get("key").getAsString();
+			var value = json.get("value").getAsString();
+			var force = json.has("force") && json.get("force").getAsBoolean();
+
+			if (force || !values.containsKey(key)) {
+				if (!Objects.equals(values.put(key, value), value)) {
+					changed = true;
+				}
+			}
+		}
+
+		return changed;
+	}
+
+	public static List<ServerMapEntry> mergeServers(List<ServerMapEntry> local, List<ServerMapEntry> remote) {
+		var result = new ArrayList<>(local);
+		var index = new HashMap<String, List<Integer>>(result.size() + remote.size());
+
+		for (int i = 0; i < result.size(); i++) {
+			index.computeIfAbsent(result.get(i).name(), k -> new ArrayList<>(1)).add(i);
+		}
+
+		for (var entry : remote) {
+			var positions = index.get(entry.name());
+
+			if (positions != null) {
+				for (int i : positions) {
+					result.set(i, entry);
+				}
+			} else if (!entry.ip().isEmpty()) {
+				index.put(entry.name(), new ArrayList<>(List.of(result.size())));
+				result.add(entry);
+			}
+		}
+
+		result.removeIf(e -> e.ip().isEmpty());
+		return result;
+	}
+
+	public static void move(Path tempPath, Path path) throws IOException {
+		try {
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	public static void write(Path path, byte[] bytes) throws IOException {
+		var tempPath = path.resolveSibling(path.getFileName() + ".pack-sync-tmp");
+		Files.write(tempPath, bytes);
+		move(tempPath, path);
+	}
+
+	public static String icon(Gson gson, Path iconPath, String checksum, Path cacheFile) throws IOException {
+		if (Files.notExists(iconPath)) {
+			return "";
+		} else if (checksum.isEmpty()) {
+			return Base64.getEncoder().encodeToString(Files.readAllBytes(iconPath));
+		}
+
+		try {
+			if (Files.exists(cacheFile)) {
+				var json = gson.fromJson(Files.readString(cacheFile), JsonObject.class);
+
+				if (json != null && checksum.equals(json.get("checksum").getAsString())) {
+					return json.get("icon").getAsString();
+				}
+			}
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to read cached server icon: " + ex);
+		}
+
+		var icon = Base64.getEncoder().encodeToString(Files.readAllBytes(iconPath));
+		var json = new JsonObject();
+		json.addProperty("checksum", checksum);
+		json.addProperty("icon", icon);
+
+		try {
+			write(cacheFile, gson.toJson(json).getBytes(StandardCharsets.UTF_8));
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to cache server icon: " + ex);
+		}
+
+		return icon;
+	}
+}
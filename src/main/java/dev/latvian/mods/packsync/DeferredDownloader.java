@@ -0,0 +1,157 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.http.HttpRequest;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+
+public class DeferredDownloader implements Runnable {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public static Path queueFile(Path localPackSyncDirectory) {
+		return localPackSyncDirectory.resolve("deferred.json");
+	}
+
+	public static void save(Gson gson, Path localPackSyncDirectory, List<RemoteFile> files) throws IOException {
+		var path = queueFile(localPackSyncDirectory);
+
+		if (files.isEmpty()) {
+			Files.deleteIfExists(path);
+			return;
+		}
+
+		var json = new JsonObject();
+		var array = new JsonArray();
+
+		for (var file : files) {
+			var fileJson = new JsonObject();
+			file.write(fileJson);
+			array.add(fileJson);
+		}
+
+		json.add("files", array);
+
+		var tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (var writer = Files.newBufferedWriter(tempPath)) {
+			gson.toJson(json, writer);
+		}
+
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static List<RemoteFile> load(Gson gson, Path localPackSyncDirectory) throws IOException {
+		var path = queueFile(localPackSyncDirectory);
+		var list = new ArrayList<RemoteFile>();
+
+		if (Files.exists(path)) {
+			try (var reader = Files.newBufferedReader(path)) {
+				var json = gson.fromJson(reader, JsonObject.class);
+
+				if (json != null && json.get("files") instanceof JsonArray array) {
+					for (var entry : array) {
+						list.add(new RemoteFile(entry.getAsJsonObject()));
+					}
+				}
+			}
+		}
+
+		return list;
+	}
+
+	private final Gson gson;
+	private final Path localPackSyncDirectory;
+	private final Repository repository;
+	private final Transport transport;
+	private final HttpRequest.Builder requestBuilderBase;
+	private final List<String> peers;
+	private final Path gameDir;
+	private final boolean link;
+	private final Verification verification;
+	private final AppliedFiles applied;
+	private final long bytesPerSecond;
+	private final SyncMetrics metrics;
+
+	public DeferredDownloader(Gson gson, Path localPackSyncDirectory, Repository repository, Transport transport, HttpRequest.Builder requestBuilderBase, List<String> peers, Path gameDir, boolean link, Verification verification, AppliedFiles applied, long bytesPerSecond, SyncMetrics metrics) {
+		this.gson = gson;
+		this.localPackSyncDirectory = localPackSyncDirectory;
+		this.repository = repository;
+		this.transport = transport;
+		this.requestBuilderBase = requestBuilderBase;
+		this.peers = peers;
+		this.gameDir = gameDir;
+		this.link = link;
+		this.verification = verification;
+		this.applied = applied;
+		this.bytesPerSecond = bytesPerSecond;
+		this.metrics = metrics;
+	}
+
+	@Override
+	public void run() {
+		List<RemoteFile> pending;
+
+		try {
+			pending = load(gson, localPackSyncDirectory);
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to read Pack Sync deferred file queue", ex);
+			return;
+		}
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		LOGGER.info("Applying %,d deferred Pack Sync files in background...".formatted(pending.size()));
+		long start = System.currentTimeMillis();
+		var remaining = new ArrayList<>(pending);
+
+		IIssueReporting issues = issue -> {
+			var message = issue.translationKey().formatted(issue.translationArgs().toArray());
+
+			if (issue.severity() == ModLoadingIssue.Severity.ERROR) {
+				LOGGER.error(message, issue.cause());
+			} else {
+				LOGGER.warn(message, issue.cause());
+			}
+		};
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor(); var progress = new SyncProgress(false, metrics); var scope = new TaskScope(executor, issues)) {
+			var downloader = new Downloader(transport, requestBuilderBase, peers, issues, progress, bytesPerSecond);
+
+			for (var file : pending) {
+				boolean fileApplied;
+
+				try (var fileScope = scope.child()) {
+					fileScope.fork(file.path(), () -> PackSync.applyExtraFile(fileScope, issues, repository, downloader, gameDir, link, verification, applied, file));
+					fileApplied = fileScope.join();
+				}
+
+				if (fileApplied) {
+					applied.save();
+					remaining.remove(file);
+					save(gson, localPackSyncDirectory, remaining);
+				}
+			}
+		} catch (InterruptedException ex) {
+			LOGGER.info("Deferred Pack Sync files interrupted, %,d left for next launch".formatted(remaining.size()));
+			return;
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to apply deferred Pack Sync files", ex);
+		}
+
+		LOGGER.info("Finished deferred Pack Sync files in %,d ms, %,d left for next launch".formatted(System.currentTimeMillis() - start, remaining.size()));
+	}
+}
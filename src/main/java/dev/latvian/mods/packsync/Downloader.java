@@ -0,0 +1,299 @@
+package dev.latvian.mods.packsync;
+
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import org.slf4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+public class Downloader {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final Duration PEER_TIMEOUT = Duration.ofSeconds(5L);
+
+	private static InputStream decode(InputStream in, Codec codec) throws IOException {
+		in = new BufferedInputStream(in);
+		return codec == Codec.NONE ? in : new BufferedInputStream(codec.decode(in));
+	}
+
+	private final Transport transport;
+	private final HttpRequest.Builder requestBuilderBase;
+	private final List<String> peers;
+	private final IIssueReporting issues;
+	private final SyncProgress progress;
+	private final long bytesPerSecond;
+	private final Map<Path, CompletableFuture<RepositoryFile>> inFlight;
+
+	public Downloader(Transport transport, HttpRequest.Builder requestBuilderBase, List<String> peers, IIssueReporting issues, SyncProgress progress, long bytesPerSecond) {
+		this.transport = transport;
+		this.requestBuilderBase = requestBuilderBase;
+		this.peers = peers;
+		this.issues = issues;
+		this.progress = progress;
+		this.bytesPerSecond = bytesPerSecond;
+		this.inFlight = new ConcurrentHashMap<>();
+	}
+
+	public Downloader(Transport transport, HttpRequest.Builder requestBuilderBase, List<String> peers, IIssueReporting issues, SyncProgress progress) {
+		this(transport, requestBuilderBase, peers, issues, progress, 0L);
+	}
+
+	// Sleeping here holds back the body subscriber, so the server is slowed down too rather than buffered
+	private LongConsumer sink(SyncProgress.Transfer transfer) {
+		if (bytesPerSecond <= 0L) {
+			return transfer::add;
+		}
+
+		long start = System.nanoTime();
+		long[] received = {0L};
+
+		return bytes -> {
+			transfer.add(bytes);
+			received[0] += bytes;
+			long ahead = received[0] * 1000L / bytesPerSecond - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+			if (ahead > 0L) {
+				try {
+					Thread.sleep(ahead);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+	}
+
+	public HttpRequest.Builder request(String uri) {
+		return requestBuilderBase.copy().uri(URI.create(uri));
+	}
+
+	// Peers are just other machines on the network, they must not see the API token or session
+	private static HttpRequest peerRequest(String uri) {
+		return HttpRequest.newBuilder(URI.create(uri)).timeout(PEER_TIMEOUT).header("User-Agent", "dev.latvian.mods.packsync/1.0").GET().build();
+	}
+
+	public void fetch(String fileName, long size, String uri, Codec codec, Consumer<InputStream> callback) {
+		try {
+			LOGGER.info("Fetching " + fileName + " from " + uri + (size > 0L ? " [%,d bytes]...".formatted(size) : "..."));
+			var response = transport.send(request(uri).build(), HttpResponse.BodyHandlers.ofInputStream());
+
+			if (response.statusCode() / 100 != 2) {
+				issues.addIssue(ModLoadingIssue.error("Failed to update %s! Error code %d", fileName, response.statusCode()));
+			}
+
+			try (var body = response.body(); var in = decode(body, codec)) {
+				callback.accept(in);
+			}
+		} catch (Exception ex) {
+			issues.addIssue(ModLoadingIssue.error("Failed to update %s!", fileName).withCause(ex));
+		}
+	}
+
+	public boolean download(Path path, String fileName, long size, String uri, Codec codec) {
+		var actualFileName = fileName.isEmpty() ? path.getFileName().toString() : fileName;
+		var partPath = path.resolveSibling(path.getFileName() + ".part");
+
+		try (var transfer = progress.start(actualFileName, size)) {
+			var request = request(uri);
+			long offset = codec == Codec.NONE ? PackSync.size(partPath) : 0L;
+
+			if (offset > 0L && (size <= 0L || offset < size)) {
+				request.header("Range", "bytes=" + offset + "-");
+				progress.metrics().retry();
+				LOGGER.info("Resuming " + actualFileName + " from " + uri + " at %,d/%,d bytes...".formatted(offset, size));
+			} else {
+				offset = 0L;
+				LOGGER.info("Downloading " + actualFileName + " from " + uri + (size > 0L ? " [%,d bytes]...".formatted(size) : "..."));
+			}
+
+			var response = transport.send(request.build(), HttpResponse.BodyHandlers.ofPublisher());
+			boolean subscribed = false;
+
+			try {
+				if (response.statusCode() / 100 != 2) {
+					if (offset > 0L) {
+						Files.deleteIfExists(partPath);
+					}
+
+					issues.addIssue(ModLoadingIssue.error("Failed to update %s! Error code %d", actualFileName, response.statusCode()).withAffectedPath(path));
+					progress.metrics().failure();
+					return false;
+				}
+
+				var parent = path.getParent();
+
+				if (Files.notExists(parent)) {
+					Files.createDirectories(parent);
+				}
+
+				boolean append = offset > 0L && response.statusCode() == 206;
+				var options = append ? new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND} : new OpenOption[]{StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING};
+
+				if (append) {
+					transfer.add(offset);
+				}
+
+				try (var channel = FileChannel.open(partPath, options)) {
+					subscribed = true;
+					progress.metrics().bytes(uri, BodyWriter.write(response.body(), channel, codec, sink(transfer)));
+				}
+			} finally {
+				// The transport holds the host's connection slot until the body is read or cancelled
+				if (!subscribed) {
+					BodyWriter.discard(response.body());
+				}
+			}
+
+			if (size > 0L && PackSync.size(partPath) != size) {
+				issues.addIssue(ModLoadingIssue.error("Failed to update %s! Expected %,d bytes, got %,d", actualFileName, size, PackSync.size(partPath)).withAffectedPath(path));
+				progress.metrics().failure();
+				Files.deleteIfExists(partPath);
+				return false;
+			}
+
+			Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING);
+			transfer.finish();
+			return true;
+		} catch (Exception ex) {
+			if (TaskScope.isCancellation(ex)) {
+				LOGGER.info("Cancelled download of " + actualFileName + ", keeping partial file for later");
+			} else {
+				issues.addIssue(ModLoadingIssue.error("Failed to update %s!", actualFileName).withCause(ex).withAffectedPath(path));
+				progress.metrics().failure();
+			}
+
+			return false;
+		}
+	}
+
+	public boolean downloadFromPeers(Path path, FileInfo fileInfo) {
+		var partPath = path.resolveSibling(path.getFileName() + ".peer.part");
+
+		for (var peer : peers) {
+			try (var transfer = progress.start(fileInfo.filename() + " from " + peer, fileInfo.size())) {
+				var response = transport.send(peerRequest(peer + "/" + fileInfo.checksum()), HttpResponse.BodyHandlers.ofPublisher());
+				boolean subscribed = false;
+
+				try {
+					if (response.statusCode() / 100 != 2) {
+						continue;
+					}
+
+					var parent = path.getParent();
+
+					if (Files.notExists(parent)) {
+						Files.createDirectories(parent);
+					}
+
+					try (var channel = FileChannel.open(partPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+						subscribed = true;
+						BodyWriter.write(response.body(), channel, Codec.NONE, sink(transfer));
+					}
+				} finally {
+					if (!subscribed) {
+						BodyWriter.discard(response.body());
+					}
+				}
+
+				if (fileInfo.size() == PackSync.size(partPath) && fileInfo.checksum().equals(Checksum.md5(partPath, issue -> {
+				}))) {
+					Files.move(partPath, path, StandardCopyOption.REPLACE_EXISTING);
+					transfer.finish();
+					progress.metrics().bytes(peer, fileInfo.size());
+					LOGGER.info("Downloaded " + fileInfo + " from peer " + peer);
+					return true;
+				}
+
+				LOGGER.warn("Peer " + peer + " sent a mismatching copy of " + fileInfo + ", ignoring it");
+				progress.metrics().retry();
+			} catch (HttpTimeoutException | ConnectException ex) {
+				LOGGER.warn("Peer " + peer + " is unreachable, disabling it for this session");
+				progress.metrics().retry();
+				peers.remove(peer);
+			} catch (Exception ex) {
+				if (TaskScope.isCancellation(ex)) {
+					break;
+				}
+
+				LOGGER.warn("Failed to download " + fileInfo + " from peer " + peer + ": " + ex);
+			}
+		}
+
+		try {
+			Files.deleteIfExists(partPath);
+		} catch (Exception ignored) {
+		}
+
+		return false;
+	}
+
+	// Blobs are shared by checksum and reused without a full check, so a bad copy must never be stored
+	private boolean checksumMatches(Path path, String fileName, FileInfo fileInfo) {
+		try {
+			if (Checksum.matches(Checksum.digest(path, Checksum.algorithm(fileInfo.checksum())), fileInfo.checksum())) {
+				return true;
+			}
+
+			issues.addIssue(ModLoadingIssue.error("Failed to update %s! Checksum mismatch", fileName).withAffectedPath(path));
+		} catch (Exception ex) {
+			issues.addIssue(ModLoadingIssue.error("Failed to read checksum of %s!", fileName).withCause(ex).withAffectedPath(path));
+		}
+
+		progress.metrics().failure();
+
+		try {
+			Files.deleteIfExists(path);
+		} catch (Exception ignored) {
+		}
+
+		return false;
+	}
+
+	public RepositoryFile downloadToRepository(Repository repository, RemoteFile file, String fileName) {
+		var path = repository.blobPath(file.fileInfo(), file.local());
+		var future = new CompletableFuture<RepositoryFile>();
+		var existing = inFlight.putIfAbsent(path, future);
+
+		// Files with the same checksum share a blob and its .part file, so only one of them downloads it
+		if (existing != null) {
+			try {
+				return existing.get();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException ex) {
+				return null;
+			}
+		}
+
+		try {
+			var result = downloadFromPeers(path, file.fileInfo()) || (download(path, fileName, file.fileInfo().size(), file.url(), file.codec()) && checksumMatches(path, fileName, file.fileInfo())) ? repository.store(path, file.fileInfo(), issues) : null;
+			future.complete(result);
+			return result;
+		} finally {
+			future.complete(null);
+			inFlight.remove(path, future);
+		}
+	}
+}
@@ -15,7 +15,7 @@ public record FileInfo(
 	public FileInfo(JsonObject json) {
 		this(
 			json.get("checksum").getAsString(),
-			json.get("filename").getAsString(),
+			json.get("filename").getAsString().intern(),
 			json.get("size").getAsLong(),
 			Artifact.of(json)
 		);
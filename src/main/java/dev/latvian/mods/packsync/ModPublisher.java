@@ -0,0 +1,112 @@
+package dev.latvian.mods.packsync;
+
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import net.neoforged.neoforgespi.locating.IDiscoveryPipeline;
+import net.neoforged.neoforgespi.locating.IncompatibleFileReporting;
+import net.neoforged.neoforgespi.locating.ModFileDiscoveryAttributes;
+import org.slf4j.Logger;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// The pipeline isn't thread safe, so both mod paths and issues reach it through this one thread until it's closed
+public class ModPublisher implements IIssueReporting, AutoCloseable {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final Runnable END = () -> {
+	};
+
+	private final IDiscoveryPipeline pipeline;
+	private final BlockingQueue<Runnable> queue;
+	private final Set<String> published;
+	private final Thread thread;
+	private boolean closed;
+
+	public ModPublisher(IDiscoveryPipeline pipeline) {
+		this.pipeline = pipeline;
+		this.queue = new LinkedBlockingQueue<>();
+		this.published = ConcurrentHashMap.newKeySet();
+		this.thread = Thread.ofPlatform().name("Pack-Sync-Mod-Publisher").start(this::run);
+	}
+
+	public boolean isPublished(FileInfo fileInfo) {
+		return published.contains(fileInfo.checksum());
+	}
+
+	public void publish(Path path, FileInfo fileInfo) {
+		if (published.add(fileInfo.checksum())) {
+			var file = new RepositoryFile(path, fileInfo);
+
+			if (!enqueue(() -> addPath(file))) {
+				addPath(file);
+			}
+		}
+	}
+
+	@Override
+	public void addIssue(ModLoadingIssue issue) {
+		if (!enqueue(() -> pipeline.addIssue(issue))) {
+			pipeline.addIssue(issue);
+		}
+	}
+
+	private boolean enqueue(Runnable task) {
+		synchronized (queue) {
+			if (closed) {
+				return false;
+			}
+
+			queue.add(task);
+			return true;
+		}
+	}
+
+	private void addPath(RepositoryFile file) {
+		try {
+			pipeline.addPath(file.path(), ModFileDiscoveryAttributes.DEFAULT, IncompatibleFileReporting.WARN_ALWAYS);
+			LOGGER.info("Loaded mod " + file);
+		} catch (Exception ex) {
+			pipeline.addIssue(ModLoadingIssue.error("Pack Sync failed to load mod %s!", file.filename()).withCause(ex).withAffectedPath(file.path()));
+		}
+	}
+
+	private void run() {
+		boolean interrupted = false;
+
+		while (true) {
+			Runnable task;
+
+			try {
+				task = queue.take();
+			} catch (InterruptedException ex) {
+				// Everything queued still has to reach the pipeline, so keep draining and restore the flag after
+				interrupted = true;
+				continue;
+			}
+
+			if (task == END) {
+				break;
+			}
+
+			task.run();
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void close() throws InterruptedException {
+		synchronized (queue) {
+			closed = true;
+			queue.add(END);
+		}
+
+		thread.join();
+	}
+}
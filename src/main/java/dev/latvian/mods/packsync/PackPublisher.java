@@ -0,0 +1,326 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import net.neoforged.fml.ModLoadingIssue;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+public class PackPublisher {
+	private static final String CACHE_FILE = ".pack-sync-cache.json";
+	private static final Pattern MOD_ID = Pattern.compile("^\\s*modId\\s*=\\s*\"([^\"]+)\"", Pattern.MULTILINE);
+	private static final Pattern VERSION = Pattern.compile("^\\s*version\\s*=\\s*\"([^\"]+)\"", Pattern.MULTILINE);
+
+	private record CacheEntry(long size, long modified, String checksum, Codec codec, boolean compressed) {
+		private CacheEntry(JsonObject json) {
+			this(
+				json.get("size").getAsLong(),
+				json.get("modified").getAsLong(),
+				json.get("checksum").getAsString(),
+				json.has("codec") ? Codec.of(json.get("codec").getAsString()) : json.has("gzip") ? Codec.GZIP : null,
+				json.has("compressed") ? json.get("compressed").getAsBoolean() : json.has("gzip") && json.get("gzip").getAsBoolean()
+			);
+		}
+
+		private JsonObject toJson() {
+			var json = new JsonObject();
+			json.addProperty("size", size);
+			json.addProperty("modified", modified);
+			json.addProperty("checksum", checksum);
+
+			if (codec != null) {
+				json.addProperty("codec", codec.id);
+				json.addProperty("compressed", compressed);
+			}
+
+			return json;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: PackPublisher <pack directory> <output directory> [--url <base url>] [--codec <gzip|deflate>]");
+			System.exit(1);
+			return;
+		}
+
+		var baseUrl = "";
+		var codec = Codec.NONE;
+
+		for (int i = 2; i < args.length; i++) {
+			switch (args[i]) {
+				case "--url" -> baseUrl = args[++i];
+				case "--codec" -> codec = Codec.of(args[++i]);
+				case "--gzip" -> codec = Codec.GZIP;
+				default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+			}
+		}
+
+		new PackPublisher(Path.of(args[0]), Path.of(args[1]), baseUrl, codec).publish();
+	}
+
+	private final Path packDirectory;
+	private final Path outputDirectory;
+	private final String baseUrl;
+	private final Codec codec;
+	private final Gson gson;
+	private final Map<String, CacheEntry> cache;
+	private final Semaphore hashPermits;
+	private final AtomicInteger hashed;
+
+	public PackPublisher(Path packDirectory, Path outputDirectory, String baseUrl, Codec codec) {
+		this.packDirectory = packDirectory.toAbsolutePath().normalize();
+		this.outputDirectory = outputDirectory.toAbsolutePath().normalize();
+
+		while (baseUrl.endsWith("/")) {
+			baseUrl = baseUrl.substring(0, baseUrl.length() - 1);
+		}
+
+		this.baseUrl = baseUrl;
+		this.codec = codec;
+		this.gson = new GsonBuilder().serializeNulls().disableHtmlEscaping().setPrettyPrinting().create();
+		this.cache = new ConcurrentHashMap<>();
+		this.hashPermits = new Semaphore(Runtime.getRuntime().availableProcessors());
+		this.hashed = new AtomicInteger(0);
+	}
+
+	public JsonObject publish() throws Exception {
+		long startTime = System.currentTimeMillis();
+		var cacheFile = outputDirectory.resolve(CACHE_FILE);
+
+		Files.createDirectories(outputDirectory);
+
+		if (Files.exists(cacheFile)) {
+			try (var reader = Files.newBufferedReader(cacheFile)) {
+				for (var entry : gson.fromJson(reader, JsonObject.class).entrySet()) {
+					cache.put(entry.getKey(), new CacheEntry(entry.getValue().getAsJsonObject()));
+				}
+			}
+		}
+
+		List<Path> files;
+
+		try (var stream = Files.walk(packDirectory)) {
+			files = stream.filter(Files::isRegularFile).filter(this::isPackFile).sorted().toList();
+		}
+
+		var results = new ArrayList<RemoteFile>(files.size());
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			var futures = new ArrayList<Future<RemoteFile>>(files.size());
+
+			for (var file : files) {
+				futures.add(executor.submit(() -> process(file)));
+			}
+
+			for (var future : futures) {
+				results.add(future.get());
+			}
+		}
+
+		var modsJson = new JsonArray();
+		var extraFilesJson = new JsonArray();
+		var versionDigest = MessageDigest.getInstance("MD5");
+
+		results.sort(Comparator.comparing(RemoteFile::path));
+
+		for (var file : results) {
+			var json = new JsonObject();
+			versionDigest.update((file.path() + ":" + file.fileInfo().checksum() + "\n").getBytes(StandardCharsets.UTF_8));
+
+			if (isMod(file.path())) {
+				new RemoteFile(file.fileInfo(), file.url(), "", false, file.codec(), false, false).write(json);
+				modsJson.add(json);
+			} else {
+				file.write(json);
+				extraFilesJson.add(json);
+			}
+		}
+
+		var manifest = new JsonObject();
+		manifest.addProperty("version", Checksum.toHex(versionDigest.digest()));
+		manifest.add("mods", modsJson);
+		manifest.add("extra_files", extraFilesJson);
+
+		writeJson(outputDirectory.resolve("sync.json"), manifest);
+
+		var cacheJson = new JsonObject();
+
+		for (var file : results) {
+			var entry = cache.get(file.path());
+
+			if (entry != null) {
+				cacheJson.add(file.path(), entry.toJson());
+			}
+		}
+
+		writeJson(cacheFile, cacheJson);
+
+		System.out.printf("Published %,d mods and %,d extra files in %,d ms (%,d hashed, %,d cached)%n", modsJson.size(), extraFilesJson.size(), System.currentTimeMillis() - startTime, hashed.get(), results.size() - hashed.get());
+		return manifest;
+	}
+
+	private boolean isPackFile(Path file) {
+		if (file.startsWith(outputDirectory)) {
+			return false;
+		}
+
+		for (var part : packDirectory.relativize(file)) {
+			if (part.toString().startsWith(".")) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean isMod(String path) {
+		return path.startsWith("mods/") && path.indexOf('/', 5) == -1 && path.endsWith(".jar");
+	}
+
+	private RemoteFile process(Path file) throws Exception {
+		var path = packDirectory.relativize(file).toString().replace('\\', '/');
+		var filename = file.getFileName().toString();
+		var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		long size = attributes.size();
+		long modified = attributes.lastModifiedTime().toMillis();
+
+		var entry = cache.get(path);
+
+		if (entry == null || entry.size() != size || entry.modified() != modified) {
+			hashPermits.acquire();
+
+			try {
+				var issue = new AtomicReference<ModLoadingIssue>();
+				var checksum = Checksum.md5(file, issue::set);
+
+				if (checksum.isEmpty()) {
+					throw new IOException("Failed to hash " + path, issue.get() == null ? null : issue.get().cause());
+				}
+
+				entry = new CacheEntry(size, modified, checksum, null, false);
+				hashed.incrementAndGet();
+			} finally {
+				hashPermits.release();
+			}
+		}
+
+		var checksum = entry.checksum();
+		var i = filename.lastIndexOf('.');
+		var blobName = checksum.substring(0, 2) + "/" + checksum + (i == -1 ? "" : filename.substring(i));
+		var blob = outputDirectory.resolve(blobName);
+
+		if (Files.notExists(blob) || Files.size(blob) != size) {
+			Files.createDirectories(blob.getParent());
+			// Files with the same content are processed in parallel, so each needs its own temp file
+			var tempPath = Files.createTempFile(blob.getParent(), blob.getFileName().toString(), ".tmp");
+			Files.copy(file, tempPath, StandardCopyOption.REPLACE_EXISTING);
+			Files.move(tempPath, blob, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		var fileCodec = Codec.NONE;
+
+		if (codec != Codec.NONE) {
+			var compressedBlob = blob.resolveSibling(blob.getFileName() + codec.extension);
+
+			if (entry.codec() != codec || entry.compressed() && Files.notExists(compressedBlob)) {
+				entry = new CacheEntry(size, modified, checksum, codec, compress(codec, blob, compressedBlob));
+			}
+
+			fileCodec = entry.compressed() ? codec : Codec.NONE;
+		}
+
+		cache.put(path, entry);
+
+		var artifact = isMod(path) ? readArtifact(file) : Artifact.NONE;
+		var fileInfo = new FileInfo(checksum, filename, size, artifact);
+		var url = (baseUrl.isEmpty() ? "" : baseUrl + "/") + blobName + fileCodec.extension;
+		return new RemoteFile(fileInfo, url, path, false, fileCodec, false, false);
+	}
+
+	private static boolean compress(Codec codec, Path source, Path target) throws IOException {
+		var tempPath = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+
+		try (var out = codec.encode(new BufferedOutputStream(Files.newOutputStream(tempPath), 65536))) {
+			Files.copy(source, out);
+		}
+
+		// Only keep the compressed copy if it saves at least 5%
+		if (Files.size(tempPath) * 20L < Files.size(source) * 19L) {
+			Files.move(tempPath, target, StandardCopyOption.REPLACE_EXISTING);
+			return true;
+		}
+
+		Files.deleteIfExists(tempPath);
+		Files.deleteIfExists(target);
+		return false;
+	}
+
+	private static Artifact readArtifact(Path file) {
+		try (var jar = new JarFile(file.toFile())) {
+			var entry = Stream.of("META-INF/neoforge.mods.toml", "META-INF/mods.toml").map(jar::getJarEntry).filter(Objects::nonNull).findFirst().orElse(null);
+
+			if (entry == null) {
+				return Artifact.NONE;
+			}
+
+			String toml;
+
+			try (var in = jar.getInputStream(entry)) {
+				toml = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+			}
+
+			var modId = MOD_ID.matcher(toml);
+
+			if (!modId.find()) {
+				return Artifact.NONE;
+			}
+
+			var version = VERSION.matcher(toml);
+			var v = version.find(modId.end()) ? version.group(1) : "";
+
+			if (v.equals("${file.jarVersion}")) {
+				var manifest = jar.getManifest();
+				var implementationVersion = manifest == null ? null : manifest.getMainAttributes().getValue("Implementation-Version");
+				v = implementationVersion == null ? "" : implementationVersion;
+			}
+
+			return new Artifact(modId.group(1), v);
+		} catch (Exception ex) {
+			return Artifact.NONE;
+		}
+	}
+
+	private void writeJson(Path path, JsonObject json) throws IOException {
+		var tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try (var writer = Files.newBufferedWriter(tempPath)) {
+			gson.toJson(json, writer);
+		}
+
+		Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+}
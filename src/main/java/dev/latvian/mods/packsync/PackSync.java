@@ -1,5 +1,6 @@
 package dev.latvian.mods.packsync;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
@@ -9,21 +10,18 @@ import dev.latvian.apps.nbt.NBTList;
 import net.neoforged.fml.ModLoadingIssue;
 import net.neoforged.fml.loading.FMLLoader;
 import net.neoforged.fml.loading.FMLPaths;
+import net.neoforged.neoforgespi.IIssueReporting;
 import net.neoforged.neoforgespi.ILaunchContext;
 import net.neoforged.neoforgespi.locating.IDiscoveryPipeline;
 import net.neoforged.neoforgespi.locating.IModFileCandidateLocator;
-import net.neoforged.neoforgespi.locating.IncompatibleFileReporting;
-import net.neoforged.neoforgespi.locating.ModFileDiscoveryAttributes;
 import org.slf4j.Logger;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.ConnectException;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.net.http.HttpTimeoutException;
@@ -31,34 +29,28 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.Duration;
 import java.util.ArrayList;
-import java.util.Base64;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executor;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Consumer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Stream;
-import java.util.zip.GZIPInputStream;
 
 public class PackSync implements IModFileCandidateLocator {
 	private static final Logger LOGGER = LogUtils.getLogger();
 
-	public static final HttpClient HTTP_CLIENT = HttpClient.newBuilder()
-		.connectTimeout(Duration.ofSeconds(60L))
-		.followRedirects(HttpClient.Redirect.ALWAYS)
-		.build();
+	private static final Duration EXIT_DEADLINE = Duration.ofSeconds(2L);
 
 	public static String getPlatform() {
 		String s = System.getProperty("os.name").toLowerCase(Locale.ROOT);
@@ -83,85 +75,351 @@ public class PackSync implements IModFileCandidateLocator {
 		}
 	}
 
-	private static InputStream gzip(InputStream in, boolean gzip) throws IOException {
-		in = new BufferedInputStream(in);
+	static void endSession(Transport transport, HttpRequest.Builder requestBuilderBase, String api, SyncMetrics metrics) {
+		try {
+			var json = metrics.toJson();
+			json.add("http", transport.toJson());
+
+			var request = requestBuilderBase.copy()
+				.uri(URI.create(api + "/exit"))
+				.timeout(EXIT_DEADLINE)
+				.header("Content-Type", "application/json")
+				.POST(HttpRequest.BodyPublishers.ofString(json.toString(), StandardCharsets.UTF_8))
+				.build();
+
+			transport.sendAsync(request, HttpResponse.BodyHandlers.discarding()).get(EXIT_DEADLINE.toMillis(), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException ex) {
+			LOGGER.warn("Pack Sync session did not end within %,d ms, giving up".formatted(EXIT_DEADLINE.toMillis()));
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to end Pack Sync session: " + ex);
+		}
+	}
 
-		if (gzip) {
-			in = new BufferedInputStream(new GZIPInputStream(in));
+	static Path sharedRepositoryDirectory() {
+		var repositoryEnv = Optional.ofNullable(System.getenv("PACK_SYNC_REPO_DIRECTORY")).orElse("");
+
+		if (!repositoryEnv.isEmpty()) {
+			return Path.of(repositoryEnv);
 		}
 
-		return in;
+		var userHome = getPlatform().equals("windows") ? System.getenv("APPDATA") : System.getProperty("user.home");
+		return Path.of(userHome).resolve("latvian.dev").resolve("pack-sync");
 	}
 
-	private static void fetch(HttpRequest.Builder requestBuilderBase, IDiscoveryPipeline pipeline, String fileName, long size, String uri, boolean gzip, Consumer<InputStream> callback) {
+	static String api(JsonObject config) {
+		var api = config.get("api").getAsString();
+
+		while (api.endsWith("/")) {
+			api = api.substring(0, api.length() - 1);
+		}
+
+		return api;
+	}
+
+	static String auth(JsonObject localConfigJson) {
+		var auth = localConfigJson.has("auth") ? localConfigJson.get("auth").getAsString() : "%PACK_SYNC_TOKEN%";
+
+		while (auth.length() >= 3 && auth.startsWith("%") && auth.endsWith("%")) {
+			auth = Optional.ofNullable(System.getenv(auth.substring(1, auth.length() - 1))).orElse("");
+		}
+
+		return auth;
+	}
+
+	static List<String> peers(JsonObject localConfigJson) {
+		var peers = new CopyOnWriteArrayList<String>();
+
+		if (localConfigJson.get("peers") instanceof JsonArray peersJson) {
+			for (var entry : peersJson) {
+				peers.add(entry.getAsString());
+			}
+		}
+
+		for (var peer : Optional.ofNullable(System.getenv("PACK_SYNC_PEERS")).orElse("").split(",")) {
+			peers.add(peer);
+		}
+
+		peers.replaceAll(peer -> {
+			peer = peer.trim();
+
+			while (peer.endsWith("/")) {
+				peer = peer.substring(0, peer.length() - 1);
+			}
+
+			return peer;
+		});
+
+		peers.removeIf(String::isEmpty);
+		return peers;
+	}
+
+	static JsonObject syncRequest(String packVersion, String mcVersion, String loaderVersion, String loaderApiVersion, boolean dev, boolean server) {
+		var requestJson = new JsonObject();
+		requestJson.addProperty("pack_version", packVersion);
+		requestJson.addProperty("mc_version", mcVersion);
+		requestJson.addProperty("loader_version", loaderVersion);
+		requestJson.addProperty("loader_api_version", loaderApiVersion);
+		requestJson.addProperty("platform", getPlatform());
+		requestJson.addProperty("dev", dev);
+		requestJson.addProperty("server", server);
+
+		var supportedFeatures = new JsonArray();
+
+		for (var codec : Codec.SUPPORTED) {
+			supportedFeatures.add(codec.id);
+		}
+
+		supportedFeatures.add("server_list");
+		supportedFeatures.add("session");
+		requestJson.add("supported_features", supportedFeatures);
+		return requestJson;
+	}
+
+	static void materialize(Path source, Path path, boolean link) throws IOException {
+		var parent = path.getParent();
+
+		if (Files.notExists(parent)) {
+			Files.createDirectories(parent);
+		}
+
+		var tempPath = path.resolveSibling(path.getFileName() + ".pack-sync-tmp");
+		Files.deleteIfExists(tempPath);
+
+		boolean linked = false;
+
+		if (link) {
+			try {
+				Files.createLink(tempPath, source);
+				linked = true;
+			} catch (UnsupportedOperationException | IOException ignored) {
+				// Different file store or no hardlink support, fall back to copying
+			}
+		}
+
+		if (!linked) {
+			Files.copy(source, tempPath, StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		ConfigMerge.move(tempPath, path);
+	}
+
+	private static boolean delete(Path path, String fileName, IIssueReporting issues) {
+		var actualFileName = fileName.isEmpty() ? path.getFileName().toString() : fileName;
+
+		try {
+			LOGGER.info("Deleting " + actualFileName + " [%,d bytes]...".formatted(Files.exists(path) ? Files.size(path) : 0L));
+			Files.deleteIfExists(path);
+			return true;
+		} catch (Exception ex) {
+			issues.addIssue(ModLoadingIssue.error("Failed to delete %s!", actualFileName).withCause(ex).withAffectedPath(path));
+			return false;
+		}
+	}
+
+	static Path extraFilePath(Path gameDir, RemoteFile file, IIssueReporting issues) {
+		var path = gameDir.resolve(file.path());
+
+		if (!path.startsWith(gameDir)) {
+			issues.addIssue(ModLoadingIssue.error("Pack Sync attempted to update file outside game directory!").withAffectedPath(path));
+			return null;
+		}
+
+		return path;
+	}
+
+	static RepositoryFile modifiedBlob(Repository repository, Path path, String checksum) {
+		var blob = repository.get(checksum);
+
 		try {
-			LOGGER.info("Fetching " + fileName + " from " + uri + (size > 0L ? " [%,d bytes]...".formatted(size) : "..."));
-			var response = HTTP_CLIENT.send(requestBuilderBase.copy().uri(URI.create(uri)).build(), HttpResponse.BodyHandlers.ofInputStream());
+			if (blob != null && Files.exists(path) && Files.isSameFile(path, blob.path())) {
+				return blob;
+			}
+		} catch (Exception ignored) {
+		}
+
+		return null;
+	}
+
+	static void discardModifiedBlob(Repository repository, RepositoryFile blob) {
+		LOGGER.warn("Repository file " + blob + " was modified through a hardlink, discarding it");
+		repository.evict(blob);
+	}
+
+	static void applyExtraFile(TaskScope scope, IIssueReporting issues, Repository repository, Downloader downloader, Path gameDir, boolean link, Verification verification, AppliedFiles applied, RemoteFile file) {
+		var path = extraFilePath(gameDir, file, issues);
+
+		if (path == null) {
+			scope.fail();
+			return;
+		} else if (!file.replace(path, verification, repository, applied, issues)) {
+			return;
+		}
+
+		var modified = modifiedBlob(repository, path, file.fileInfo().checksum());
 
-			if (response.statusCode() / 100 != 2) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to update %s! Error code %d", fileName, response.statusCode()));
+		if (modified != null) {
+			discardModifiedBlob(repository, modified);
+		}
+
+		replaceExtraFile(scope, issues, repository, downloader, gameDir, link, verification, applied, file);
+	}
+
+	static void replaceExtraFile(TaskScope scope, IIssueReporting issues, Repository repository, Downloader downloader, Path gameDir, boolean link, Verification verification, AppliedFiles applied, RemoteFile file) {
+		var path = gameDir.resolve(file.path());
+		var relPath = gameDir.relativize(path);
+
+		if (file.fileInfo().size() == 0L && file.fileInfo().filename().equals("deleted")) {
+			if (delete(path, relPath.toString(), issues)) {
+				applied.remove(file.path());
+			} else {
+				scope.fail();
 			}
 
-			try (var in = gzip(response.body(), gzip)) {
-				callback.accept(in);
+			return;
+		}
+
+		var checksum = file.fileInfo().checksum();
+		var blob = repository.get(checksum);
+
+		if (blob == null || blob.size() != file.fileInfo().size() || !repository.verify(blob, verification, issues)) {
+			blob = downloader.downloadToRepository(repository, file, relPath + " (" + checksum + ")");
+
+			if (blob == null) {
+				scope.fail();
+				return;
 			}
+		}
+
+		try {
+			LOGGER.info("Updating " + relPath + " from repository file " + blob.checksum());
+			materialize(blob.path(), path, link);
+			applied.put(file.path(), checksum);
 		} catch (Exception ex) {
-			pipeline.addIssue(ModLoadingIssue.error("Failed to update %s!", fileName).withCause(ex));
+			issues.addIssue(ModLoadingIssue.error("Failed to update %s!", relPath.toString()).withCause(ex).withAffectedPath(path));
+			scope.fail();
 		}
 	}
 
-	private static boolean download(HttpRequest.Builder requestBuilderBase, IDiscoveryPipeline pipeline, Path path, String fileName, long size, String uri, boolean gzip) {
-		var actualFileName = fileName.isEmpty() ? path.getFileName().toString() : fileName;
+	private static void downloadMod(TaskScope scope, IIssueReporting issues, Repository repository, Downloader downloader, ModPublisher publisher, Set<String> disabledArtifacts, Verification verification, RemoteFile remoteFile) {
+		var fileInfo = remoteFile.fileInfo();
+		var repositoryFile = repository.get(fileInfo.checksum());
+
+		if (repositoryFile != null && repositoryFile.matches(fileInfo) && verification == Verification.NONE) {
+			if (!isDisabled(fileInfo, disabledArtifacts)) {
+				publisher.publish(repositoryFile.path(), fileInfo);
+			}
+
+			return;
+		}
+
+		scope.fork(fileInfo.filename(), () -> {
+			var existing = repositoryFile != null && repository.verify(repositoryFile, verification, issues) ? repositoryFile : null;
+			var file = existing == null ? downloader.downloadToRepository(repository, remoteFile, fileInfo.filename() + " (" + fileInfo.checksum() + ")") : existing.matches(fileInfo) ? existing : repository.store(existing.path(), fileInfo, issues);
+
+			if (file == null) {
+				scope.fail();
+			} else if (!isDisabled(fileInfo, disabledArtifacts)) {
+				publisher.publish(file.path(), fileInfo);
+			}
+		});
+	}
+
+	static void writeVersionFile(Gson gson, Path versionFile, String version, List<FileInfo> modList) throws IOException {
+		try (var writer = Files.newBufferedWriter(versionFile)) {
+			var versionJson = new JsonObject();
+			versionJson.addProperty("version", version);
+			var modsJson = new JsonArray();
+
+			for (var fileInfo : modList) {
+				var modJson = new JsonObject();
+				fileInfo.write(modJson);
+				modsJson.add(modJson);
+			}
+
+			versionJson.add("mods", modsJson);
+			gson.toJson(versionJson, writer);
+		}
+	}
+
+	static void updateOptions(Path path, JsonArray arr, IIssueReporting issues) {
+		LOGGER.info("Updating options.txt...");
 
 		try {
-			LOGGER.info("Downloading " + actualFileName + " from " + uri + (size > 0L ? " [%,d bytes]...".formatted(size) : "..."));
-			var response = HTTP_CLIENT.send(requestBuilderBase.copy().uri(URI.create(uri)).build(), HttpResponse.BodyHandlers.ofInputStream());
+			var options = new LinkedHashMap<String, String>();
+
+			if (Files.exists(path)) {
+				for (var line : Files.readAllLines(path)) {
+					var parts = line.split(":", 2);
 
-			if (response.statusCode() / 100 != 2) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to update %s! Error code %d", actualFileName, response.statusCode()).withAffectedPath(path));
-				return false;
+					if (parts.length == 2) {
+						options.put(parts[0], parts[1]);
+					}
+				}
 			}
 
-			var parent = path.getParent();
+			boolean changed = ConfigMerge.merge(options, arr);
 
-			if (Files.notExists(parent)) {
-				Files.createDirectories(parent);
+			if (!options.containsKey("version")) {
+				options.putFirst("version", "4325"); // FIXME: Figure out how to get SharedConstants.getCurrentVersion().getDataVersion().getVersion()
+				changed = true;
 			}
 
-			try (var in = gzip(response.body(), gzip); var out = new BufferedOutputStream(Files.newOutputStream(path))) {
-				in.transferTo(out);
-				return true;
+			if (changed) {
+				var sb = new StringBuilder();
+
+				for (var e : options.entrySet()) {
+					sb.append(e.getKey()).append(':').append(e.getValue()).append(System.lineSeparator());
+				}
+
+				ConfigMerge.write(path, sb.toString().getBytes(StandardCharsets.UTF_8));
+			} else {
+				LOGGER.info("options.txt is up to date");
 			}
 		} catch (Exception ex) {
-			pipeline.addIssue(ModLoadingIssue.error("Failed to update %s!", actualFileName).withCause(ex).withAffectedPath(path));
-			return false;
+			issues.addIssue(ModLoadingIssue.warning("Failed to update options.txt!").withCause(ex).withAffectedPath(path));
 		}
 	}
 
-	private static boolean delete(Path path, String fileName, IDiscoveryPipeline pipeline) {
-		var actualFileName = fileName.isEmpty() ? path.getFileName().toString() : fileName;
+	static void updateServerProperties(Path path, JsonArray arr, IIssueReporting issues) {
+		LOGGER.info("Updating server.properties...");
 
 		try {
-			LOGGER.info("Deleting " + actualFileName + " [%,d bytes]...".formatted(Files.exists(path) ? Files.size(path) : 0L));
-			Files.deleteIfExists(path);
-			return true;
+			var properties = new Properties();
+
+			if (Files.exists(path)) {
+				try (var in = Files.newInputStream(path)) {
+					properties.load(in);
+				}
+			}
+
+			var values = new HashMap<String, String>();
+
+			for (var key : properties.stringPropertyNames()) {
+				values.put(key, properties.getProperty(key));
+			}
+
+			if (ConfigMerge.merge(values, arr)) {
+				properties.putAll(values);
+				var out = new ByteArrayOutputStream();
+				properties.store(out, "Minecraft server properties");
+				ConfigMerge.write(path, out.toByteArray());
+			} else {
+				LOGGER.info("server.properties is up to date");
+			}
 		} catch (Exception ex) {
-			pipeline.addIssue(ModLoadingIssue.error("Failed to delete %s!", actualFileName).withCause(ex).withAffectedPath(path));
-			return false;
+			issues.addIssue(ModLoadingIssue.warning("Failed to update server.properties!").withCause(ex).withAffectedPath(path));
 		}
 	}
 
-	public static void findMods(ILaunchContext context, Executor executor, IDiscoveryPipeline pipeline) throws Exception {
-		var errors = new AtomicInteger(0);
+	public static void findMods(ILaunchContext context, TaskScope scope, ModPublisher publisher, SyncProgress progress, List<Thread> background, IIssueReporting issues) throws Exception {
+		var metrics = progress.metrics();
 		var gameDir = FMLPaths.GAMEDIR.get();
-		long startTime = System.currentTimeMillis();
 		var gson = new GsonBuilder().serializeNulls().disableHtmlEscaping().setPrettyPrinting().create();
-		var futures = new ArrayList<CompletableFuture<Void>>();
 
 		var configFile = FMLPaths.MODSDIR.get().resolve("pack-sync.json");
 
 		if (Files.notExists(configFile)) {
-			pipeline.addIssue(ModLoadingIssue.error("Pack Sync config file not found!").withAffectedPath(configFile));
+			issues.addIssue(ModLoadingIssue.error("Pack Sync config file not found!").withAffectedPath(configFile));
 			return;
 		}
 
@@ -170,7 +428,7 @@ public class PackSync implements IModFileCandidateLocator {
 		try (var reader = Files.newBufferedReader(configFile)) {
 			config = gson.fromJson(reader, JsonObject.class);
 		} catch (Exception ex) {
-			pipeline.addIssue(ModLoadingIssue.error("Failed to read Pack Sync config file!").withCause(ex).withAffectedPath(configFile));
+			issues.addIssue(ModLoadingIssue.error("Failed to read Pack Sync config file!").withCause(ex).withAffectedPath(configFile));
 			return;
 		}
 
@@ -180,7 +438,7 @@ public class PackSync implements IModFileCandidateLocator {
 			try {
 				Files.createDirectories(localPackSyncDirectory);
 			} catch (Exception ex) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to create Pack Sync local directory!").withCause(ex).withAffectedPath(localPackSyncDirectory));
+				issues.addIssue(ModLoadingIssue.error("Failed to create Pack Sync local directory!").withCause(ex).withAffectedPath(localPackSyncDirectory));
 				return;
 			}
 		}
@@ -195,7 +453,7 @@ public class PackSync implements IModFileCandidateLocator {
 			try (var reader = Files.newBufferedReader(localConfigFile)) {
 				localConfigJson = gson.fromJson(reader, JsonObject.class);
 			} catch (Exception ex) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to read Pack Sync local config file!").withCause(ex).withAffectedPath(localConfigFile));
+				issues.addIssue(ModLoadingIssue.error("Failed to read Pack Sync local config file!").withCause(ex).withAffectedPath(localConfigFile));
 				return;
 			}
 		}
@@ -231,77 +489,118 @@ public class PackSync implements IModFileCandidateLocator {
 			}
 		}
 
+		var peers = peers(localConfigJson);
+
+		// Opt-in, a linked file shares its blob, so editing it in place would change the repository copy too
+		boolean linkExtraFiles = localConfigJson.has("link_extra_files") && localConfigJson.get("link_extra_files").getAsBoolean();
+		var modVerification = Verification.of(localConfigJson, "mod_verification", Verification.SIZE);
+		var extraFileVerification = Verification.of(localConfigJson, "extra_file_verification", Verification.FULL);
+
+		long scrubInterval = TimeUnit.DAYS.toMillis(localConfigJson.has("scrub_interval_days") ? localConfigJson.get("scrub_interval_days").getAsLong() : 0L);
+		long scrubBytesPerSecond = 1024L * (localConfigJson.has("scrub_kib_per_second") ? localConfigJson.get("scrub_kib_per_second").getAsLong() : 4096L);
+		long deferredBytesPerSecond = 1024L * (localConfigJson.has("deferred_kib_per_second") ? localConfigJson.get("deferred_kib_per_second").getAsLong() : 2048L);
+
+		var peerServerPortEnv = Optional.ofNullable(System.getenv("PACK_SYNC_PEER_SERVER_PORT")).orElse("");
+		int peerServerPort = peerServerPortEnv.isEmpty() ? localConfigJson.has("peer_server_port") ? localConfigJson.get("peer_server_port").getAsInt() : 0 : Integer.parseInt(peerServerPortEnv);
+		var peerServerAddress = Optional.ofNullable(System.getenv("PACK_SYNC_PEER_SERVER_ADDRESS")).orElse(localConfigJson.has("peer_server_address") ? localConfigJson.get("peer_server_address").getAsString() : "");
+
 		var localRepository = localPackSyncDirectory.resolve("repository");
 
 		if (Files.notExists(localRepository)) {
 			try {
 				Files.createDirectories(localRepository);
 			} catch (Exception ex) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to create Pack Sync local repository directory!").withCause(ex).withAffectedPath(localRepository));
+				issues.addIssue(ModLoadingIssue.error("Failed to create Pack Sync local repository directory!").withCause(ex).withAffectedPath(localRepository));
 				return;
 			}
 		}
 
-		var platform = getPlatform();
-		var userHome = platform.equals("windows") ? System.getenv("APPDATA") : System.getProperty("user.home");
-		var repositoryEnv = Optional.ofNullable(System.getenv("PACK_SYNC_REPO_DIRECTORY")).orElse("");
-
-		var repository = repositoryEnv.isEmpty() ? Path.of(userHome).resolve("latvian.dev").resolve("pack-sync") : Path.of(repositoryEnv);
+		var sharedRepository = sharedRepositoryDirectory();
 
-		if (Files.notExists(repository) || !Files.isDirectory(repository)) {
+		if (Files.notExists(sharedRepository) || !Files.isDirectory(sharedRepository)) {
 			try {
-				Files.createDirectories(repository);
+				Files.createDirectories(sharedRepository);
 			} catch (AccessDeniedException ex) {
-				repository = localRepository;
+				sharedRepository = localRepository;
 				LOGGER.error("Failed to create Pack Sync repository directory! Switching to local repository directory");
 			} catch (Exception ex) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to create Pack Sync repository directory!").withCause(ex).withAffectedPath(repository));
+				issues.addIssue(ModLoadingIssue.error("Failed to create Pack Sync repository directory!").withCause(ex).withAffectedPath(sharedRepository));
+			}
+		}
+
+		var repository = new Repository(sharedRepository, localRepository, gson);
+
+		RepositoryScrubber.quarantinePending(gson, sharedRepository);
+
+		var scanTask = scope.fork("repository scan", () -> {
+			long scanStart = System.currentTimeMillis();
+			repository.scan(scope, issues);
+			metrics.phase("scan", scanStart);
+		});
+
+		if (scrubInterval > 0L) {
+			var scrubber = new RepositoryScrubber(gson, sharedRepository, repository.files(), scrubInterval, scrubBytesPerSecond);
+			background.add(Thread.ofPlatform().daemon().priority(Thread.MIN_PRIORITY).name("Pack-Sync-Scrubber").unstarted(scrubber));
+		}
+
+		if (peerServerPort > 0) {
+			try {
+				var peerServer = new PeerServer(repository, peerServerAddress.isEmpty() ? new InetSocketAddress(peerServerPort) : new InetSocketAddress(peerServerAddress, peerServerPort));
+				LOGGER.info("Pack Sync peer server listening on " + peerServer.address());
+
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					try {
+						peerServer.close();
+					} catch (Exception ignored) {
+					}
+				}, "Pack-Sync-Peer-Server-Shutdown"));
+			} catch (Exception ex) {
+				issues.addIssue(ModLoadingIssue.warning("Failed to start Pack Sync peer server on port %d!", peerServerPort).withCause(ex));
 			}
 		}
 
-		var repositoryFiles = new ConcurrentHashMap<String, RepositoryFile>();
+		if (!peers.isEmpty()) {
+			LOGGER.info("Using Pack Sync peers " + peers);
+		}
+
+		var versionFile = localPackSyncDirectory.resolve("version.json");
+
+		var packVersion = "";
+		var modList = new ArrayList<FileInfo>();
 
-		try (var listStream = Stream.concat(Files.walk(repository), Files.walk(localRepository))) {
-			listStream.filter(Files::isRegularFile).forEach(file -> {
-				var filename = file.getFileName().toString();
+		if (Files.exists(versionFile)) {
+			try (var reader = Files.newBufferedReader(versionFile)) {
+				var versionJson = gson.fromJson(reader, JsonObject.class);
+				packVersion = versionJson.has("version") ? versionJson.get("version").getAsString() : "";
 
-				if (!filename.endsWith(".meta.json")) {
-					futures.add(CompletableFuture.runAsync(() -> {
+				if (versionJson.get("mods") instanceof JsonArray modsJson) {
+					for (var entry : modsJson) {
 						try {
-							var i = filename.lastIndexOf('.');
-							var checksum = i == -1 ? filename : filename.substring(0, i);
-							var metaPath = file.resolveSibling(checksum + ".meta.json");
-
-							if (Files.exists(metaPath) && Files.isRegularFile(metaPath)) {
-								try (var reader = Files.newBufferedReader(metaPath)) {
-									var json = gson.fromJson(reader, JsonObject.class);
-									var repositoryFile = new RepositoryFile(file, json);
-									repositoryFiles.put(repositoryFile.fileInfo().checksum(), repositoryFile);
-								}
-							} else {
-								pipeline.addIssue(ModLoadingIssue.warning("Failed to load metadata file of Pack Sync repository file %s!", filename).withAffectedPath(metaPath));
-							}
+							modList.add(new FileInfo(entry.getAsJsonObject()));
 						} catch (Exception ex) {
-							pipeline.addIssue(ModLoadingIssue.warning("Failed to load Pack Sync repository file %s!", filename).withCause(ex).withAffectedPath(file));
+							issues.addIssue(ModLoadingIssue.error("Pack Sync error loading mod %s!", entry.toString()).withCause(ex));
 						}
-					}, executor));
+					}
 				}
-			});
+			} catch (Exception ex) {
+				issues.addIssue(ModLoadingIssue.error("Failed to read Pack Sync version file!").withCause(ex).withAffectedPath(versionFile));
+				return;
+			}
 		}
 
-		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-		futures.clear();
-
-		var now = System.currentTimeMillis();
-		LOGGER.info("Found %,d local files in %,d ms".formatted(repositoryFiles.size(), now - startTime));
+		var knownArtifacts = new HashSet<String>();
+		var disabledArtifacts = new HashSet<String>();
 
-		var api0 = config.get("api").getAsString();
+		for (var e : localConfigJson.get("disabled_artifacts").getAsJsonObject().entrySet()) {
+			var key = e.getKey();
+			knownArtifacts.add(key);
 
-		while (api0.endsWith("/")) {
-			api0 = api0.substring(0, api0.length() - 1);
+			if (e.getValue().getAsBoolean()) {
+				disabledArtifacts.add(key);
+			}
 		}
 
-		var api = api0;
+		var api = api(config);
 
 		var packCode = config.get("pack_code").getAsString();
 		var packId = config.has("pack_id") ? config.get("pack_id").getAsString() : packCode;
@@ -309,38 +608,98 @@ public class PackSync implements IModFileCandidateLocator {
 		System.setProperty("dev.latvian.mods.packsync.id", packId);
 		System.setProperty("dev.latvian.mods.packsync.code", packCode);
 
-		var auth = localConfigJson.has("auth") ? localConfigJson.get("auth").getAsString() : "%PACK_SYNC_TOKEN%";
+		var transport = Transport.of(localConfigJson);
+		var requestBuilderBase = transport.requestBuilder(auth(localConfigJson));
 
-		while (auth.length() >= 3 && auth.startsWith("%") && auth.endsWith("%")) {
-			auth = Optional.ofNullable(System.getenv(auth.substring(1, auth.length() - 1))).orElse("");
-		}
+		var downloader = new Downloader(transport, requestBuilderBase, peers, issues, progress);
+		var appliedFiles = AppliedFiles.load(gson, localPackSyncDirectory);
+		var deferredDownloader = new DeferredDownloader(gson, localPackSyncDirectory, repository, transport, requestBuilderBase, peers, gameDir, linkExtraFiles, extraFileVerification, appliedFiles, deferredBytesPerSecond, metrics);
+		background.add(Thread.ofPlatform().daemon().priority(Thread.MIN_PRIORITY).name("Pack-Sync-Deferred").unstarted(deferredDownloader));
+		var history = new VersionHistory(localPackSyncDirectory.resolve("history"), gson, localConfigJson.has("history_size") ? localConfigJson.get("history_size").getAsInt() : 5);
+		var pinnedVersion = System.getProperty("dev.latvian.mods.packsync.pin", localConfigJson.has("pinned_version") ? localConfigJson.get("pinned_version").getAsString() : "");
+		var dryRun = Boolean.getBoolean("dev.latvian.mods.packsync.dry_run");
+
+		if (!pinnedVersion.isEmpty()) {
+			var snapshot = history.load(pinnedVersion);
+
+			if (snapshot == null) {
+				var available = history.list().stream().map(VersionHistory.Snapshot::version).toList();
+				issues.addIssue(ModLoadingIssue.error("Pinned Pack Sync version %s not found! Available versions: %s", pinnedVersion, String.join(", ", available)));
+				return;
+			}
+
+			if (!scanTask.join()) {
+				return;
+			}
 
-		var requestBuilderBase = HttpRequest.newBuilder().timeout(Duration.ofSeconds(60L)).header("User-Agent", "dev.latvian.mods.packsync/1.0");
+			LOGGER.info("Switching to pinned pack version '" + pinnedVersion + "'" + (packVersion.equals(pinnedVersion) ? "" : " from '" + packVersion + "'"));
+			var current = packVersion.equals(pinnedVersion) ? null : history.load(packVersion);
 
-		if (!auth.isEmpty()) {
-			requestBuilderBase.header("Authorization", "Bearer " + auth);
+			for (var mod : snapshot.mods()) {
+				downloadMod(scope, issues, repository, downloader, publisher, disabledArtifacts, modVerification, mod);
+			}
+
+			var pinnedPaths = new HashSet<String>();
+			var deferredFiles = new ArrayList<RemoteFile>();
+
+			for (var file : snapshot.extraFiles()) {
+				pinnedPaths.add(file.path());
+
+				if (file.deferred()) {
+					deferredFiles.add(file);
+				} else {
+					scope.fork(file.path(), () -> applyExtraFile(scope, issues, repository, downloader, gameDir, linkExtraFiles, extraFileVerification, appliedFiles, file));
+				}
+			}
+
+			if (current != null) {
+				for (var file : current.extraFiles()) {
+					var path = gameDir.resolve(file.path());
+
+					if (!pinnedPaths.contains(file.path()) && path.startsWith(gameDir) && Files.exists(path) && file.fileInfo().isEqual(path, issues) && delete(path, file.path(), issues)) {
+						appliedFiles.remove(file.path());
+					}
+				}
+			}
+
+			boolean switched = scope.join();
+			appliedFiles.save();
+
+			if (!switched) {
+				LOGGER.error("Switching to pinned pack version failed, outstanding transfers were cancelled");
+				return;
+			}
+
+			modList.clear();
+			modList.addAll(snapshot.modList());
+			writeVersionFile(gson, versionFile, pinnedVersion, modList);
+			DeferredDownloader.save(gson, localPackSyncDirectory, deferredFiles);
+			loadMods(repository, modList, disabledArtifacts, publisher, issues);
+			return;
 		}
 
 		String sessionId;
 		String newVersion;
+		long versionStart = System.currentTimeMillis();
 
 		try {
-			var versionRequest = HTTP_CLIENT.send(requestBuilderBase.copy().uri(URI.create(api + "/version/" + URLEncoder.encode(packCode, StandardCharsets.UTF_8))).GET().build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+			var versionRequest = transport.send(requestBuilderBase.copy().uri(URI.create(api + "/version/" + URLEncoder.encode(packCode, StandardCharsets.UTF_8))).GET().build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
 			sessionId = versionRequest.headers().firstValue("X-Pack-Sync-Session-ID").orElse("");
 			packId = versionRequest.headers().firstValue("X-Pack-Sync-Pack-ID").orElse(packId);
 			System.setProperty("dev.latvian.mods.packsync.id", packId);
 
 			if (versionRequest.statusCode() / 100 != 2) {
-				pipeline.addIssue(ModLoadingIssue.warning("Failed to update the modpack with error %d - %s!", versionRequest.statusCode(), versionRequest.body()));
+				issues.addIssue(ModLoadingIssue.warning("Failed to update the modpack with error %d - %s!", versionRequest.statusCode(), versionRequest.body()));
 				return;
 			}
 
 			newVersion = versionRequest.body().trim();
 		} catch (HttpTimeoutException | ConnectException ex) {
-			pipeline.addIssue(ModLoadingIssue.warning("Pack Sync update server timed out!").withCause(ex));
+			issues.addIssue(ModLoadingIssue.warning("Pack Sync update server timed out!").withCause(ex));
 			return;
 		}
 
+		metrics.phase("version", versionStart);
 		System.setProperty("dev.latvian.mods.packsync.version", newVersion);
 
 		if (!sessionId.isEmpty()) {
@@ -348,96 +707,56 @@ public class PackSync implements IModFileCandidateLocator {
 			requestBuilderBase.header("X-Pack-Sync-Session-ID", sessionId);
 		}
 
-		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-			try {
-				HTTP_CLIENT.send(requestBuilderBase.copy().uri(URI.create(api + "/exit")).POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.discarding());
-				HTTP_CLIENT.close();
-			} catch (Exception ex) {
-				ex.printStackTrace();
-			}
-		}, "Pack-Sync-Shutdown-Hook"));
-
-		var versionFile = localPackSyncDirectory.resolve("version.json");
-
-		var packVersion = "";
-		var modList = new ArrayList<FileInfo>();
-
-		if (Files.exists(versionFile)) {
-			try (var reader = Files.newBufferedReader(versionFile)) {
-				var versionJson = gson.fromJson(reader, JsonObject.class);
-				packVersion = versionJson.has("version") ? versionJson.get("version").getAsString() : "";
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> endSession(transport, requestBuilderBase, api, metrics), "Pack-Sync-Shutdown-Hook"));
 
-				if (versionJson.get("mods") instanceof JsonArray modsJson) {
-					for (var entry : modsJson) {
-						try {
-							modList.add(new FileInfo(entry.getAsJsonObject()));
-						} catch (Exception ex) {
-							pipeline.addIssue(ModLoadingIssue.error("Pack Sync error loading mod %s!", entry.toString()).withCause(ex));
-						}
-					}
-				}
-			} catch (Exception ex) {
-				pipeline.addIssue(ModLoadingIssue.error("Failed to read Pack Sync version file!").withCause(ex).withAffectedPath(versionFile));
-				return;
-			}
+		if (!scanTask.join()) {
+			metrics.result("failed");
+			return;
 		}
 
-		var knownArtifacts = new HashSet<String>();
-		var disabledArtifacts = new HashSet<String>();
-
-		for (var e : localConfigJson.get("disabled_artifacts").getAsJsonObject().entrySet()) {
-			var key = e.getKey();
-			knownArtifacts.add(key);
-
-			if (e.getValue().getAsBoolean()) {
-				disabledArtifacts.add(key);
-			}
-		}
+		long verifyStart = System.currentTimeMillis();
 
-		if (!packVersion.isEmpty() && !checkModsExist(repositoryFiles, modList, disabledArtifacts)) {
+		if (!packVersion.isEmpty() && !checkModsExist(scope, issues, repository, modList, disabledArtifacts, modVerification)) {
 			LOGGER.info("Found missing or broken repository files, forcing an update...");
 			packVersion = "";
 		}
 
+		metrics.phase("verify", verifyStart);
+
 		if (!packVersion.isEmpty() && localConfigJson.get("pause_updates").getAsBoolean()) {
 			LOGGER.info("Pack updates are paused ('" + packVersion + "')!");
-			loadMods(repositoryFiles, modList, disabledArtifacts, pipeline);
+			metrics.result("paused");
+			metrics.cache(modList.size(), 0L);
+			loadMods(repository, modList, disabledArtifacts, publisher, issues);
 			return;
 		}
 
 		if (newVersion.equals(packVersion)) {
 			LOGGER.info("Pack is up to date ('" + packVersion + "')!");
-			loadMods(repositoryFiles, modList, disabledArtifacts, pipeline);
+			metrics.result("up_to_date");
+			metrics.cache(modList.size(), 0L);
+			loadMods(repository, modList, disabledArtifacts, publisher, issues);
 			return;
 		}
 
 		LOGGER.info("Update found! '" + packVersion + "' -> '" + newVersion + "'");
 
-		var requestJson = new JsonObject();
-		requestJson.addProperty("pack_version", packVersion);
-		requestJson.addProperty("mc_version", context.getVersions().mcVersion());
-		requestJson.addProperty("loader_version", context.getVersions().neoFormVersion());
-		requestJson.addProperty("loader_api_version", context.getVersions().neoForgeVersion());
-		requestJson.addProperty("platform", platform);
-		requestJson.addProperty("dev", !FMLLoader.getCurrent().isProduction());
-		requestJson.addProperty("server", context.getRequiredDistribution().isDedicatedServer());
-
-		var supportedFeatures = new JsonArray();
-		supportedFeatures.add("gzip");
-		supportedFeatures.add("server_list");
-		supportedFeatures.add("session");
+		var baseVersion = history.base(packVersion);
+		var versions = context.getVersions();
+		var requestJson = syncRequest(baseVersion, versions.mcVersion(), versions.neoFormVersion(), versions.neoForgeVersion(), !FMLLoader.getCurrent().isProduction(), context.getRequiredDistribution().isDedicatedServer());
 
 		if (context.getRequiredDistribution().isClient()) {
-			loadSupportedClientFeatures(supportedFeatures);
+			loadSupportedClientFeatures(requestJson.getAsJsonArray("supported_features"));
 		}
 
-		requestJson.add("supported_features", supportedFeatures);
-
-		var syncRequest = HTTP_CLIENT.send(requestBuilderBase.copy().uri(URI.create(api + "/sync/" + URLEncoder.encode(packCode, StandardCharsets.UTF_8))).POST(HttpRequest.BodyPublishers.ofString(requestJson.toString(), StandardCharsets.UTF_8)).build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+		long syncStart = System.currentTimeMillis();
+		var syncRequest = transport.send(requestBuilderBase.copy().uri(URI.create(api + "/sync/" + URLEncoder.encode(packCode, StandardCharsets.UTF_8))).POST(HttpRequest.BodyPublishers.ofString(requestJson.toString(), StandardCharsets.UTF_8)).build(), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+		metrics.phase("sync", syncStart);
 
 		if (syncRequest.statusCode() / 100 != 2) {
-			pipeline.addIssue(ModLoadingIssue.warning("Failed to update the modpack with error %d - %s!", syncRequest.statusCode(), syncRequest.body()));
-			loadMods(repositoryFiles, modList, disabledArtifacts, pipeline);
+			issues.addIssue(ModLoadingIssue.warning("Failed to update the modpack with error %d - %s!", syncRequest.statusCode(), syncRequest.body()));
+			metrics.result("failed");
+			loadMods(repository, modList, disabledArtifacts, publisher, issues);
 			return;
 		}
 
@@ -445,125 +764,103 @@ public class PackSync implements IModFileCandidateLocator {
 
 		if (syncJson.has("warnings")) {
 			for (var entry : syncJson.get("warnings").getAsJsonArray()) {
-				pipeline.addIssue(ModLoadingIssue.warning(entry.getAsString()));
+				issues.addIssue(ModLoadingIssue.warning(entry.getAsString()));
 			}
 		}
 
 		if (syncJson.has("errors")) {
 			for (var entry : syncJson.get("errors").getAsJsonArray()) {
-				pipeline.addIssue(ModLoadingIssue.error(entry.getAsString()));
+				issues.addIssue(ModLoadingIssue.error(entry.getAsString()));
 			}
 
 			return;
 		}
 
-		if (syncJson.has("mods")) {
-			modList.clear();
+		var remoteMods = new ArrayList<RemoteFile>();
+		var remoteExtraFiles = new ArrayList<RemoteFile>();
+		var deferredFiles = new ArrayList<RemoteFile>();
 
+		if (syncJson.has("mods")) {
 			for (var entry : syncJson.get("mods").getAsJsonArray()) {
-				var remoteFile = new RemoteFile(entry.getAsJsonObject());
-				var checksum = remoteFile.fileInfo().checksum();
-				var filename = remoteFile.fileInfo().filename();
+				remoteMods.add(new RemoteFile(entry.getAsJsonObject()));
+			}
+		}
 
-				var repositoryFile = repositoryFiles.get(checksum);
+		if (syncJson.has("extra_files")) {
+			for (var entry : syncJson.get("extra_files").getAsJsonArray()) {
+				remoteExtraFiles.add(new RemoteFile(entry.getAsJsonObject()));
+			}
+		}
 
-				if (repositoryFile == null || !repositoryFile.fileInfo().equals(remoteFile.fileInfo())) {
-					var dir = (remoteFile.local() ? localRepository : repository).resolve(checksum.substring(0, 2));
+		long planStart = System.currentTimeMillis();
+		var plan = UpdatePlan.create(scope, issues, repository, gameDir, linkExtraFiles, extraFileVerification, appliedFiles, remoteMods, remoteExtraFiles);
+		metrics.phase("plan", planStart);
 
-					if (Files.notExists(dir) || !Files.isDirectory(dir)) {
-						try {
-							Files.createDirectory(dir);
-						} catch (Exception ex) {
-							pipeline.addIssue(ModLoadingIssue.error("Failed to create Pack Sync repository directory!").withCause(ex).withAffectedPath(dir));
-							return;
-						}
-					}
+		if (plan == null) {
+			metrics.result("failed");
+			return;
+		}
 
-					futures.add(CompletableFuture.runAsync(() -> {
-						var exti = filename.lastIndexOf('.');
-						var ext = exti == -1 ? "" : filename.substring(exti);
-						var downloadPath = dir.resolve(checksum + ext);
+		plan.log(UpdatePlan.loadThroughput(gson, localPackSyncDirectory));
+		metrics.cache(plan.count(UpdatePlan.Action.REUSE), plan.count(UpdatePlan.Action.DOWNLOAD));
 
-						if (repositoryFile != null || download(requestBuilderBase, pipeline, downloadPath, filename + " (" + checksum + ")", remoteFile.fileInfo().size(), remoteFile.url(), remoteFile.gzip())) {
-							var file = new RepositoryFile(downloadPath, remoteFile.fileInfo());
-							repositoryFiles.put(file.fileInfo().checksum(), file);
+		if (!plan.checkDiskSpace(issues)) {
+			metrics.result("no_space");
+			return;
+		} else if (dryRun) {
+			LOGGER.info("Pack Sync dry run, not applying update '" + packVersion + "' -> '" + newVersion + "'");
+			metrics.result("dry_run");
+			loadMods(repository, modList, disabledArtifacts, publisher, issues);
+			return;
+		}
 
-							var json = new JsonObject();
-							file.fileInfo().write(json);
+		plan.discardModifiedBlobs(repository);
 
-							var metaPath = downloadPath.resolveSibling(checksum + ".meta.json");
+		long transferStart = System.currentTimeMillis();
 
-							try (var writer = Files.newBufferedWriter(metaPath)) {
-								gson.toJson(json, writer);
-							} catch (Exception ex) {
-								pipeline.addIssue(ModLoadingIssue.error("Failed to save Pack Sync file %s metadata!", filename).withCause(ex).withAffectedPath(metaPath));
-								errors.incrementAndGet();
-							}
-						}
-					}, executor));
-				}
+		if (syncJson.has("mods")) {
+			modList.clear();
 
-				modList.add(remoteFile.fileInfo());
+			for (var entry : plan.mods()) {
+				downloadMod(scope, issues, repository, downloader, publisher, disabledArtifacts, modVerification, entry.file());
+				modList.add(entry.file().fileInfo());
 			}
 
-			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-			futures.clear();
 			modList.sort((a, b) -> a.filename().compareToIgnoreCase(b.filename()));
 		}
 
-		if (errors.get() > 0) {
-			return;
-		}
-
-		if (syncJson.has("extra_files")) {
-			for (var entry : syncJson.get("extra_files").getAsJsonArray()) {
-				var file = new RemoteFile(entry.getAsJsonObject());
-
-				futures.add(CompletableFuture.runAsync(() -> {
-					var path = gameDir.resolve(file.path());
-
-					if (!path.startsWith(gameDir)) {
-						pipeline.addIssue(ModLoadingIssue.error("Pack Sync attempted to update file outside game directory!").withAffectedPath(path));
-						errors.incrementAndGet();
-					} else if (file.replace(path, pipeline)) {
-						var relPath = gameDir.relativize(path);
+		for (var entry : plan.extraFiles()) {
+			var file = entry.file();
 
-						if (file.fileInfo().size() == 0L && file.fileInfo().filename().equals("deleted")) {
-							delete(path, relPath.toString(), pipeline);
-						} else {
-							download(requestBuilderBase, pipeline, path, relPath.toString(), file.fileInfo().size(), file.url(), file.gzip());
-						}
-					}
-				}, executor));
+			switch (entry.action()) {
+				case DEFER -> deferredFiles.add(file);
+				case DOWNLOAD, REUSE, DELETE -> scope.fork(file.path(), () -> replaceExtraFile(scope, issues, repository, downloader, gameDir, linkExtraFiles, extraFileVerification, appliedFiles, file));
+				case KEEP -> {
+				}
 			}
 		}
 
+		TaskScope.Task serverIconTask = null;
+
 		if (syncJson.has("server_icon")) {
 			var file = new RemoteFile(syncJson.get("server_icon").getAsJsonObject());
 
-			futures.add(CompletableFuture.runAsync(() -> {
+			serverIconTask = scope.fork("server-icon.png", () -> {
 				var path = gameDir.resolve("server-icon.png");
 
-				if (file.replace(path, pipeline)) {
-					download(requestBuilderBase, pipeline, path, "server-icon.png", file.fileInfo().size(), file.url(), file.gzip());
+				if (file.replace(path, issues) && !downloader.download(path, "server-icon.png", file.fileInfo().size(), file.url(), file.codec())) {
+					scope.fail();
 				}
-			}, executor));
-		}
-
-		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-		futures.clear();
-
-		if (errors.get() > 0) {
-			return;
+			});
 		}
 
 		if (syncJson.has("servers") || syncJson.has("server_list")) {
-			futures.add(CompletableFuture.runAsync(() -> {
+			scope.fork("servers.dat", () -> {
 				var localPath = gameDir.resolve("servers.dat");
-				var iconPath = gameDir.resolve("server-icon.png");
+				var iconFile = syncJson.has("server_icon") ? new RemoteFile(syncJson.get("server_icon").getAsJsonObject()) : null;
 
 				try {
-					var icon = Files.exists(iconPath) ? Base64.getEncoder().encodeToString(Files.readAllBytes(iconPath)) : "";
+					var icon = ConfigMerge.icon(gson, gameDir.resolve("server-icon.png"), iconFile == null || iconFile.lazy() ? "" : iconFile.fileInfo().checksum(), localPackSyncDirectory.resolve("server-icon.json"));
 					var localNbt = Files.exists(localPath) ? NBTCompoundTag.read(localPath) : new NBTCompoundTag();
 					var localServerList = ServerMapEntry.load(localNbt, "");
 					var remoteServerList = new ArrayList<ServerMapEntry>();
@@ -575,154 +872,63 @@ public class PackSync implements IModFileCandidateLocator {
 					} else {
 						var file = new RemoteFile(syncJson.get("servers").getAsJsonObject());
 
-						fetch(requestBuilderBase, pipeline, "servers.dat", file.fileInfo().size(), file.url(), file.gzip(), in -> {
+						downloader.fetch("servers.dat", file.fileInfo().size(), file.url(), file.codec(), in -> {
 							try {
 								var remoteNbt = NBTCompoundTag.readFully(in);
 								remoteServerList.addAll(ServerMapEntry.load(remoteNbt, icon));
 							} catch (Exception ex) {
-								pipeline.addIssue(ModLoadingIssue.error("Failed to fetch remote servers.dat!").withCause(ex));
-								errors.incrementAndGet();
+								issues.addIssue(ModLoadingIssue.error("Failed to fetch remote servers.dat!").withCause(ex));
+								scope.fail();
 							}
 						});
 					}
 
-					for (var entry : remoteServerList) {
-						boolean replaced = false;
+					var serverList = ConfigMerge.mergeServers(localServerList, remoteServerList);
 
-						for (int i = 0; i < localServerList.size(); i++) {
-							var lentry = localServerList.get(i);
-
-							if (lentry.name().equals(entry.name())) {
-								localServerList.set(i, entry);
-								replaced = true;
-							}
-						}
-
-						if (!replaced && !entry.ip().isEmpty()) {
-							localServerList.add(entry);
-						}
+					if (serverList.equals(localServerList) && Files.exists(localPath)) {
+						LOGGER.info("servers.dat is up to date");
+					} else {
+						var tempPath = localPath.resolveSibling(localPath.getFileName() + ".pack-sync-tmp");
+						localNbt.put("servers", new NBTList(serverList.stream().map(ServerMapEntry::toNBT).toList()));
+						localNbt.write(tempPath);
+						ConfigMerge.move(tempPath, localPath);
 					}
-
-					localServerList.removeIf(e -> e.ip().isEmpty());
-					localNbt.put("servers", new NBTList(localServerList.stream().map(ServerMapEntry::toNBT).toList()));
-					localNbt.write(localPath);
 				} catch (Exception ex) {
-					pipeline.addIssue(ModLoadingIssue.error("Failed to update servers.dat!").withCause(ex).withAffectedPath(localPath));
-					errors.incrementAndGet();
+					issues.addIssue(ModLoadingIssue.error("Failed to update servers.dat!").withCause(ex).withAffectedPath(localPath));
+					scope.fail();
 				}
-			}, executor));
-		}
-
-		if (errors.get() > 0) {
-			return;
+			}, Stream.ofNullable(serverIconTask).toArray(TaskScope.Task[]::new));
 		}
 
 		if (syncJson.has("options")) {
-			futures.add(CompletableFuture.runAsync(() -> {
-				LOGGER.info("Updating options.txt...");
-				var path = gameDir.resolve("options.txt");
-
-				try {
-					var options = new LinkedHashMap<String, String>();
-					boolean changed = false;
-
-					if (Files.exists(path)) {
-						for (var line : Files.readAllLines(path)) {
-							var parts = line.split(":", 2);
-
-							if (parts.length == 2) {
-								options.put(parts[0], parts[1]);
-							}
-						}
-					}
-
-					var arr = syncJson.get("options").getAsJsonArray();
-
-					for (var entry : arr) {
-						var json = entry.getAsJsonObject();
-						var key = json.get("key").getAsString();
-						var value = json.get("value").getAsString();
-						var force = json.has("force") && json.get("force").getAsBoolean();
-
-						if (force || !options.containsKey(key)) {
-							if (!Objects.equals(options.put(key, value), value)) {
-								changed = true;
-							}
-						}
-					}
-
-					if (!options.containsKey("version")) {
-						options.putFirst("version", "4325"); // FIXME: Figure out how to get SharedConstants.getCurrentVersion().getDataVersion().getVersion()
-						changed = true;
-					}
-
-					if (changed) {
-						var lines = options.entrySet().stream().map(e -> e.getKey() + ":" + e.getValue()).toList();
-						Files.write(path, lines);
-					}
-				} catch (Exception ex) {
-					pipeline.addIssue(ModLoadingIssue.warning("Failed to update options.txt!").withCause(ex).withAffectedPath(path));
-				}
-			}, executor));
+			scope.fork("options.txt", () -> updateOptions(gameDir.resolve("options.txt"), syncJson.get("options").getAsJsonArray(), issues));
 		}
 
 		if (syncJson.has("server_properties")) {
-			futures.add(CompletableFuture.runAsync(() -> {
-				LOGGER.info("Updating server.properties...");
-				var path = gameDir.resolve("server.properties");
-
-				try {
-					var properties = new Properties();
-					boolean changed = false;
-
-					if (Files.exists(path)) {
-						try (var in = Files.newInputStream(path)) {
-							properties.load(in);
-						}
-					}
-
-					var arr = syncJson.get("server_properties").getAsJsonArray();
-
-					for (var entry : arr) {
-						var json = entry.getAsJsonObject();
-						var key = json.get("key").getAsString();
-						var value = json.get("value").getAsString();
-						var force = json.has("force") && json.get("force").getAsBoolean();
+			scope.fork("server.properties", () -> updateServerProperties(gameDir.resolve("server.properties"), syncJson.get("server_properties").getAsJsonArray(), issues));
+		}
 
-						if (force || !properties.containsKey(key)) {
-							if (!Objects.equals(properties.setProperty(key, value), value)) {
-								changed = true;
-							}
-						}
-					}
+		boolean updated = scope.join();
+		appliedFiles.save();
+		metrics.phase("transfer", transferStart);
+		metrics.result(updated ? "updated" : "failed");
 
-					if (changed) {
-						try (var out = Files.newOutputStream(path)) {
-							properties.store(out, "Minecraft server properties");
-						}
-					}
-				} catch (Exception ex) {
-					pipeline.addIssue(ModLoadingIssue.warning("Failed to update server.properties!").withCause(ex).withAffectedPath(path));
-				}
-			}, executor));
+		if (!updated) {
+			LOGGER.error("Pack update failed, outstanding transfers were cancelled");
+			return;
 		}
 
-		CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
-		futures.clear();
+		writeVersionFile(gson, versionFile, newVersion, modList);
+		UpdatePlan.saveThroughput(gson, localPackSyncDirectory, progress.throughput());
 
-		try (var writer = Files.newBufferedWriter(versionFile)) {
-			var versionJson = new JsonObject();
-			versionJson.addProperty("version", newVersion);
-			var modsJson = new JsonArray();
+		if (syncJson.has("extra_files")) {
+			DeferredDownloader.save(gson, localPackSyncDirectory, deferredFiles);
+		}
 
-			for (var fileInfo : modList) {
-				var modJson = new JsonObject();
-				fileInfo.write(modJson);
-				modsJson.add(modJson);
-			}
+		var previousSnapshot = history.previous(baseVersion);
 
-			versionJson.add("mods", modsJson);
-			gson.toJson(versionJson, writer);
+		if (previousSnapshot != null) {
+			history.save(previousSnapshot.update(newVersion, System.currentTimeMillis(), syncJson.has("mods") ? remoteMods : null, remoteExtraFiles));
 		}
 
 		var newKnownArtifacts = new HashSet<>(disabledArtifacts);
@@ -750,61 +956,70 @@ public class PackSync implements IModFileCandidateLocator {
 		}
 
 		LOGGER.info("Pack updated '" + packVersion + "' -> '" + newVersion + "'!");
-		loadMods(repositoryFiles, modList, disabledArtifacts, pipeline);
+		loadMods(repository, modList, disabledArtifacts, publisher, issues);
 	}
 
 	private static void loadSupportedClientFeatures(JsonArray features) {
 		PackSyncClient.loadSupportedClientFeatures(features);
 	}
 
-	private static boolean checkModsExist(Map<String, RepositoryFile> repositoryFiles, List<FileInfo> modList, Set<String> disabledArtifacts) {
-		for (var fileInfo : modList) {
-			try {
-				var artifact = fileInfo.artifact().artifact();
+	static boolean isDisabled(FileInfo fileInfo, Set<String> disabledArtifacts) {
+		var artifact = fileInfo.artifact().artifact();
+		return !artifact.isEmpty() && disabledArtifacts.contains(artifact);
+	}
 
-				if (!artifact.isEmpty() && disabledArtifacts.contains(artifact)) {
+	private static boolean checkModsExist(TaskScope scope, IIssueReporting issues, Repository repository, List<FileInfo> modList, Set<String> disabledArtifacts, Verification verification) throws Exception {
+		long startTime = System.currentTimeMillis();
+		var valid = new AtomicBoolean(true);
+
+		try (var verifyScope = scope.child()) {
+			for (var fileInfo : modList) {
+				if (isDisabled(fileInfo, disabledArtifacts)) {
 					continue;
 				}
 
-				var repositoryFile = repositoryFiles.get(fileInfo.checksum());
+				var repositoryFile = repository.get(fileInfo.checksum());
 
 				if (repositoryFile == null) {
 					return false;
+				} else if (verification != Verification.NONE) {
+					verifyScope.fork("verify " + fileInfo.filename(), () -> {
+						if (!repository.verify(repositoryFile, verification, issues)) {
+							valid.set(false);
+						}
+					});
 				}
-			} catch (Exception ex) {
-				return false;
 			}
+
+			verifyScope.join();
 		}
 
-		return true;
-	}
+		if (verification != Verification.NONE) {
+			LOGGER.info("Verified %,d mods (%s) in %,d ms".formatted(modList.size(), verification.name().toLowerCase(Locale.ROOT), System.currentTimeMillis() - startTime));
+		}
 
-	private static void loadMods(Map<String, RepositoryFile> repositoryFiles, List<FileInfo> modList, Set<String> disabledArtifacts, IDiscoveryPipeline pipeline) {
-		var filesToLoad = new ArrayList<RepositoryFile>();
+		return valid.get();
+	}
 
+	private static void loadMods(Repository repository, List<FileInfo> modList, Set<String> disabledArtifacts, ModPublisher publisher, IIssueReporting issues) {
 		for (var fileInfo : modList) {
-			String filename = fileInfo.filename();
-
-			var artifact = fileInfo.artifact().artifact();
+			if (isDisabled(fileInfo, disabledArtifacts)) {
+				LOGGER.info("Skipping artifact '" + fileInfo.filename() + "' (" + fileInfo.artifact().artifact() + ")");
+				continue;
+			}
 
-			if (!artifact.isEmpty() && disabledArtifacts.contains(artifact)) {
-				LOGGER.info("Skipping artifact '" + filename + "' (" + artifact + ")");
+			if (publisher.isPublished(fileInfo)) {
 				continue;
 			}
 
-			var repositoryFile = repositoryFiles.get(fileInfo.checksum());
+			var repositoryFile = repository.get(fileInfo.checksum());
 
 			if (repositoryFile != null) {
-				filesToLoad.add(repositoryFile);
-				LOGGER.info("Loaded mod " + fileInfo);
+				publisher.publish(repositoryFile.path(), fileInfo);
 			} else {
-				pipeline.addIssue(ModLoadingIssue.error("Pack Sync mod %s not found!", fileInfo.filename()));
+				issues.addIssue(ModLoadingIssue.error("Pack Sync mod %s not found!", fileInfo.filename()));
 			}
 		}
-
-		for (var file : filesToLoad) {
-			pipeline.addPath(file.path(), ModFileDiscoveryAttributes.DEFAULT, IncompatibleFileReporting.WARN_ALWAYS);
-		}
 	}
 
 	@Override
@@ -812,8 +1027,11 @@ public class PackSync implements IModFileCandidateLocator {
 		long startTime = System.currentTimeMillis();
 		LOGGER.info("Loading Pack Sync...");
 
-		try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
-			findMods(context, executor, pipeline);
+		var background = new ArrayList<Thread>();
+		var metrics = new SyncMetrics();
+
+		try (var executor = Executors.newVirtualThreadPerTaskExecutor(); var publisher = new ModPublisher(pipeline); var progress = new SyncProgress(!context.getRequiredDistribution().isDedicatedServer(), metrics); var scope = new TaskScope(executor, publisher)) {
+			findMods(context, scope, publisher, progress, background, publisher);
 		} catch (HttpTimeoutException ex) {
 			pipeline.addIssue(ModLoadingIssue.warning("Pack Sync update server timed out!").withCause(ex));
 		} catch (Exception ex) {
@@ -821,7 +1039,9 @@ public class PackSync implements IModFileCandidateLocator {
 		}
 
 		var now = System.currentTimeMillis();
+		metrics.phase("total", startTime);
 		LOGGER.info("Finished loading Pack Sync in " + (now - startTime) + " ms!");
+		background.forEach(Thread::start);
 	}
 
 	@Override
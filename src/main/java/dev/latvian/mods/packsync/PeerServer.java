@@ -0,0 +1,195 @@
+package dev.latvian.mods.packsync;
+
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+public class PeerServer implements AutoCloseable {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final int MAX_HEAD_SIZE = 8192;
+	private static final int READ_TIMEOUT = 30_000;
+
+	private final Repository repository;
+	private final ServerSocketChannel channel;
+
+	public PeerServer(Repository repository, InetSocketAddress address) throws IOException {
+		this.repository = repository;
+		this.channel = ServerSocketChannel.open();
+		this.channel.bind(address);
+		Thread.ofPlatform().daemon().name("Pack-Sync-Peer-Server").start(this::accept);
+	}
+
+	public InetSocketAddress address() throws IOException {
+		return (InetSocketAddress) channel.getLocalAddress();
+	}
+
+	private void accept() {
+		while (channel.isOpen()) {
+			try {
+				var socket = channel.accept();
+				Thread.ofVirtual().name("Pack-Sync-Peer-Connection").start(() -> handle(socket));
+			} catch (ClosedChannelException ex) {
+				break;
+			} catch (IOException ex) {
+				LOGGER.warn("Pack Sync peer server failed to accept connection", ex);
+			}
+		}
+	}
+
+	private void handle(SocketChannel socket) {
+		try (socket) {
+			// Channel reads ignore SO_TIMEOUT, the socket's stream doesn't
+			socket.socket().setSoTimeout(READ_TIMEOUT);
+			var in = socket.socket().getInputStream();
+			var buffer = ByteBuffer.allocate(MAX_HEAD_SIZE);
+
+			while (true) {
+				var head = readHead(in, buffer);
+
+				if (head == null || !respond(socket, head)) {
+					break;
+				}
+			}
+		} catch (IOException ignored) {
+			// Peer disconnected or timed out, nothing to do
+		}
+	}
+
+	private static String readHead(InputStream in, ByteBuffer buffer) throws IOException {
+		while (true) {
+			var data = buffer.array();
+
+			for (int i = 3; i < buffer.position(); i++) {
+				if (data[i - 3] == '\r' && data[i - 2] == '\n' && data[i - 1] == '\r' && data[i] == '\n') {
+					var head = new String(data, 0, i + 1, StandardCharsets.ISO_8859_1);
+					buffer.flip().position(i + 1);
+					buffer.compact();
+					return head;
+				}
+			}
+
+			if (!buffer.hasRemaining()) {
+				return null;
+			}
+
+			int n = in.read(buffer.array(), buffer.position(), buffer.remaining());
+
+			if (n == -1) {
+				return null;
+			}
+
+			buffer.position(buffer.position() + n);
+		}
+	}
+
+	private boolean respond(SocketChannel socket, String head) throws IOException {
+		var lines = head.split("\r\n");
+		var request = lines[0].split(" ");
+
+		if (request.length != 3) {
+			writeHead(socket, "400 Bad Request", 0L, "", false);
+			return false;
+		}
+
+		boolean keepAlive = request[2].equals("HTTP/1.1");
+
+		for (int i = 1; i < lines.length; i++) {
+			var line = lines[i].toLowerCase(Locale.ROOT);
+
+			if (line.startsWith("connection:")) {
+				var value = line.substring(11).trim();
+
+				if (value.equals("close")) {
+					keepAlive = false;
+				} else if (value.equals("keep-alive")) {
+					keepAlive = true;
+				}
+			}
+		}
+
+		var method = request[0];
+
+		if (!method.equals("GET") && !method.equals("HEAD")) {
+			writeHead(socket, "405 Method Not Allowed", 0L, "", keepAlive);
+			return keepAlive;
+		}
+
+		var checksum = request[1].startsWith("/") ? request[1].substring(1) : request[1];
+		var file = isChecksum(checksum) ? repository.files().get(checksum) : null;
+
+		// Local blobs can be token gated, only the shared repository is served
+		if (file == null || file.path().startsWith(repository.localDirectory())) {
+			writeHead(socket, "404 Not Found", 0L, "", keepAlive);
+			return keepAlive;
+		}
+
+		try (var fileChannel = FileChannel.open(file.path())) {
+			long size = fileChannel.size();
+			writeHead(socket, "200 OK", size, checksum, keepAlive);
+
+			if (method.equals("GET")) {
+				// transferTo lets the kernel send the file straight from the page cache
+				long position = 0L;
+
+				while (position < size) {
+					position += fileChannel.transferTo(position, size - position, socket);
+				}
+			}
+		} catch (IOException ex) {
+			LOGGER.warn("Pack Sync peer server failed to send " + file, ex);
+			return false;
+		}
+
+		return keepAlive;
+	}
+
+	private static boolean isChecksum(String checksum) {
+		if (checksum.isEmpty()) {
+			return false;
+		}
+
+		for (int i = 0; i < checksum.length(); i++) {
+			char c = checksum.charAt(i);
+
+			if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static void writeHead(SocketChannel socket, String status, long contentLength, String checksum, boolean keepAlive) throws IOException {
+		var sb = new StringBuilder();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Type: application/octet-stream\r\n");
+		sb.append("Content-Length: ").append(contentLength).append("\r\n");
+
+		if (!checksum.isEmpty()) {
+			sb.append("X-Pack-Sync-Checksum: ").append(checksum).append("\r\n");
+		}
+
+		sb.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n\r\n");
+
+		var buffer = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+		while (buffer.hasRemaining()) {
+			socket.write(buffer);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
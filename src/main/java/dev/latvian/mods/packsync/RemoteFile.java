@@ -11,8 +11,9 @@ public record RemoteFile(
 	String url,
 	String path,
 	boolean lazy,
-	boolean gzip,
-	boolean local
+	Codec codec,
+	boolean local,
+	boolean deferred
 ) {
 	public RemoteFile(JsonObject json) {
 		this(
@@ -20,12 +21,62 @@ public record RemoteFile(
 			json.get("url").getAsString(),
 			json.has("path") ? json.get("path").getAsString() : "",
 			json.has("lazy") && json.get("lazy").getAsBoolean(),
-			json.has("gzip") && json.get("gzip").getAsBoolean(),
-			json.has("local") && json.get("local").getAsBoolean()
+			Codec.of(json),
+			json.has("local") && json.get("local").getAsBoolean(),
+			json.has("deferred") && json.get("deferred").getAsBoolean()
 		);
 	}
 
+	public void write(JsonObject json) {
+		fileInfo.write(json);
+		json.addProperty("url", url);
+
+		if (!path.isEmpty()) {
+			json.addProperty("path", path);
+		}
+
+		if (lazy) {
+			json.addProperty("lazy", true);
+		}
+
+		codec.write(json);
+
+		if (local) {
+			json.addProperty("local", true);
+		}
+
+		if (deferred) {
+			json.addProperty("deferred", true);
+		}
+	}
+
 	public boolean replace(Path path, IIssueReporting issues) {
 		return lazy ? Files.notExists(path) : !fileInfo.isEqual(path, issues);
 	}
+
+	public boolean replace(Path path, Verification verification, Repository repository, AppliedFiles applied, IIssueReporting issues) {
+		if (lazy) {
+			return Files.notExists(path);
+		} else if (fileInfo.size() == 0L && fileInfo.filename().equals("deleted")) {
+			return Files.exists(path);
+		}
+
+		var last = applied.get(this.path);
+
+		if (last != null && !last.equals(fileInfo.checksum())) {
+			return true;
+		}
+
+		// The level only decides how hard an unchanged file is re-checked, a file with no record gets one full check
+		var level = last == null ? Verification.FULL : verification;
+		var blob = level == Verification.SAMPLED ? repository.get(fileInfo.checksum()) : null;
+
+		if (!level.matches(path, fileInfo, blob == null ? Checksum.NO_DIGEST : blob.sampledDigest(), issues)) {
+			return true;
+		} else if (last == null) {
+			applied.put(this.path, fileInfo.checksum());
+		}
+
+		return false;
+	}
 }
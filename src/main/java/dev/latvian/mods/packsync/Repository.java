@@ -0,0 +1,200 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import org.slf4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+public class Repository {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public static String extension(String filename) {
+		var i = filename.lastIndexOf('.');
+		return i == -1 ? "" : filename.substring(i);
+	}
+
+	private final Path directory;
+	private final Path localDirectory;
+	private final Gson gson;
+	private final Repository parent;
+	private final RepositoryIndex files;
+	private final Set<RepositoryFile> verified;
+
+	private Repository(Path directory, Path localDirectory, Gson gson, Repository parent) {
+		this.directory = directory;
+		this.localDirectory = localDirectory;
+		this.gson = gson;
+		this.parent = parent;
+		this.files = new RepositoryIndex();
+		this.verified = ConcurrentHashMap.newKeySet();
+	}
+
+	public Repository(Path directory, Path localDirectory, Gson gson) {
+		this(directory, localDirectory, gson, null);
+	}
+
+	public Repository withLocalDirectory(Path localDirectory) {
+		return new Repository(directory, localDirectory, gson, this);
+	}
+
+	public Path directory() {
+		return directory;
+	}
+
+	public Path localDirectory() {
+		return localDirectory;
+	}
+
+	public RepositoryIndex files() {
+		return files;
+	}
+
+	public RepositoryFile get(String checksum) {
+		var file = files.get(checksum);
+		return file == null && parent != null ? parent.get(checksum) : file;
+	}
+
+	public RepositoryFile getLocal(String checksum) {
+		var file = get(checksum);
+		return file != null && file.path().startsWith(localDirectory) ? file : null;
+	}
+
+	public Path blobPath(FileInfo fileInfo, boolean local) {
+		var checksum = fileInfo.checksum();
+		return (local ? localDirectory : directory).resolve(checksum.substring(0, 2)).resolve(checksum + extension(fileInfo.filename()));
+	}
+
+	public void scan(TaskScope scope, IIssueReporting issues) throws Exception {
+		long startTime = System.currentTimeMillis();
+		var directories = parent != null || directory.equals(localDirectory) ? Stream.of(localDirectory) : Stream.of(directory, localDirectory);
+
+		try (var scanScope = scope.child(); var listStream = directories.flatMap(dir -> {
+			try {
+				return Files.walk(dir);
+			} catch (Exception ex) {
+				issues.addIssue(ModLoadingIssue.warning("Failed to list Pack Sync repository %s!", dir.toString()).withCause(ex).withAffectedPath(dir));
+				return Stream.empty();
+			}
+		})) {
+			listStream.filter(Files::isRegularFile).forEach(file -> {
+				var filename = file.getFileName().toString();
+
+				if (!filename.endsWith(".meta.json") && !filename.endsWith(".part")) {
+					scanScope.fork("scan " + filename, () -> {
+						try {
+							var i = filename.lastIndexOf('.');
+							var checksum = i == -1 ? filename : filename.substring(0, i);
+							var metaPath = file.resolveSibling(checksum + ".meta.json");
+
+							if (Files.isRegularFile(metaPath)) {
+								var json = gson.fromJson(Files.readString(metaPath), JsonObject.class);
+								var root = file.getParent().getParent();
+								var canonical = json.has("checksum") && json.has("filename") && filename.equals(json.get("checksum").getAsString() + extension(json.get("filename").getAsString()));
+
+								if (canonical && root.equals(directory)) {
+									files.put(RepositoryFile.inDirectory(directory, json));
+								} else if (canonical && root.equals(localDirectory)) {
+									files.put(RepositoryFile.inDirectory(localDirectory, json));
+								} else {
+									files.put(RepositoryFile.of(file, json));
+								}
+							} else {
+								issues.addIssue(ModLoadingIssue.warning("Failed to load metadata file of Pack Sync repository file %s!", filename).withAffectedPath(metaPath));
+							}
+						} catch (Exception ex) {
+							issues.addIssue(ModLoadingIssue.warning("Failed to load Pack Sync repository file %s!", filename).withCause(ex).withAffectedPath(file));
+						}
+					});
+				}
+			});
+
+			scanScope.join();
+		}
+
+		LOGGER.info("Found %,d local files in %,d ms".formatted(files.size(), System.currentTimeMillis() - startTime));
+	}
+
+	public RepositoryFile store(Path path, FileInfo fileInfo, IIssueReporting issues) {
+		if (parent != null && !path.startsWith(localDirectory)) {
+			return parent.store(path, fileInfo, issues);
+		}
+
+		var sampled = Checksum.sampledDigest(path, issues);
+		var file = new RepositoryFile(path, fileInfo, sampled);
+		files.put(file);
+
+		var json = new JsonObject();
+		fileInfo.write(json);
+
+		if (sampled.length > 0) {
+			json.addProperty("sampled", Checksum.toHex(sampled));
+		}
+
+		var metaPath = path.resolveSibling(fileInfo.checksum() + ".meta.json");
+
+		try (var writer = Files.newBufferedWriter(metaPath)) {
+			gson.toJson(json, writer);
+			return file;
+		} catch (Exception ex) {
+			issues.addIssue(ModLoadingIssue.error("Failed to save Pack Sync file %s metadata!", fileInfo.filename()).withCause(ex).withAffectedPath(metaPath));
+			return null;
+		}
+	}
+
+	public boolean verify(RepositoryFile file, Verification verification, IIssueReporting issues) {
+		if (parent != null && !file.path().startsWith(localDirectory)) {
+			return parent.verify(file, verification, issues);
+		} else if (verification == Verification.NONE || verified.contains(file)) {
+			return true;
+		}
+
+		try {
+			if (!verification.check(file)) {
+				LOGGER.warn("Repository file " + file + " failed " + verification.name().toLowerCase(Locale.ROOT) + " verification, discarding it");
+				evict(file);
+				return false;
+			}
+		} catch (Exception ex) {
+			// Couldn't be read right now, that doesn't mean it's broken
+			LOGGER.warn("Failed to verify repository file " + file + ": " + ex);
+			return false;
+		}
+
+		if (verification == Verification.SAMPLED && file.sampledDigest().length == 0) {
+			var stored = store(file.path(), file.fileInfo(), issues);
+
+			if (stored != null) {
+				verified.add(stored);
+			}
+		}
+
+		verified.add(file);
+		return true;
+	}
+
+	public void evict(RepositoryFile file) {
+		if (parent != null && !file.path().startsWith(localDirectory)) {
+			parent.evict(file);
+			return;
+		}
+
+		files.remove(file);
+		verified.remove(file);
+
+		try {
+			Files.deleteIfExists(file.path().resolveSibling(file.checksum() + ".meta.json"));
+			Files.deleteIfExists(file.path());
+		} catch (Exception ex) {
+			LOGGER.error("Failed to delete repository file " + file.path(), ex);
+		}
+	}
+}
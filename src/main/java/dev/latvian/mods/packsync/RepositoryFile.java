@@ -1,11 +1,101 @@
 package dev.latvian.mods.packsync;
 
 import com.google.gson.JsonObject;
+import org.jetbrains.annotations.NotNull;
 
 import java.nio.file.Path;
+import java.util.HexFormat;
 
-public record RepositoryFile(Path path, FileInfo fileInfo) {
-	public RepositoryFile(Path path, JsonObject json) {
-		this(path, new FileInfo(json));
+public final class RepositoryFile {
+	private static byte[] fromHex(String hex) {
+		return hex.isEmpty() ? Checksum.NO_DIGEST : HexFormat.of().parseHex(hex);
 	}
-}
\ No newline at end of file
+
+	private final byte[] digest;
+	private final String filename;
+	private final long size;
+	private final Artifact artifact;
+	private final byte[] sampled;
+	private final Path directory;
+	private Path path;
+
+	private RepositoryFile(Path directory, Path path, FileInfo fileInfo, byte[] sampled) {
+		this.digest = fromHex(fileInfo.checksum());
+		this.filename = fileInfo.filename();
+		this.size = fileInfo.size();
+		this.artifact = fileInfo.artifact();
+		this.sampled = sampled;
+		this.directory = directory;
+		this.path = path;
+	}
+
+	public RepositoryFile(Path path, FileInfo fileInfo, byte[] sampled) {
+		this(null, path, fileInfo, sampled);
+	}
+
+	public RepositoryFile(Path path, FileInfo fileInfo) {
+		this(null, path, fileInfo, Checksum.NO_DIGEST);
+	}
+
+	public static RepositoryFile inDirectory(Path directory, JsonObject json) {
+		return new RepositoryFile(directory, null, new FileInfo(json), fromHex(json.has("sampled") ? json.get("sampled").getAsString() : ""));
+	}
+
+	public static RepositoryFile of(Path path, JsonObject json) {
+		return new RepositoryFile(null, path, new FileInfo(json), fromHex(json.has("sampled") ? json.get("sampled").getAsString() : ""));
+	}
+
+	public byte[] digest() {
+		return digest;
+	}
+
+	public String checksum() {
+		return Checksum.toHex(digest);
+	}
+
+	public String filename() {
+		return filename;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	public Artifact artifact() {
+		return artifact;
+	}
+
+	public byte[] sampledDigest() {
+		return sampled;
+	}
+
+	public String sampled() {
+		return Checksum.toHex(sampled);
+	}
+
+	public FileInfo fileInfo() {
+		return new FileInfo(checksum(), filename, size, artifact);
+	}
+
+	public Path path() {
+		var p = path;
+
+		if (p == null) {
+			var checksum = checksum();
+			p = directory.resolve(checksum.substring(0, 2)).resolve(checksum + Repository.extension(filename));
+			path = p;
+		}
+
+		return p;
+	}
+
+	public boolean matches(FileInfo fileInfo) {
+		return size == fileInfo.size() && filename.equals(fileInfo.filename()) && artifact.equals(fileInfo.artifact()) && Checksum.matches(digest, fileInfo.checksum());
+	}
+
+	@Override
+	@NotNull
+	public String toString() {
+		return filename + " (" + (artifact.equals(Artifact.NONE) ? "" : (artifact + "/")) + checksum() + ")";
+	}
+}
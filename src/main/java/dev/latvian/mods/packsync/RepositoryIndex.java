@@ -0,0 +1,249 @@
+package dev.latvian.mods.packsync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+
+public class RepositoryIndex {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static int mix(int h) {
+		h *= 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private static int hash(byte[] digest) {
+		int h = 0;
+
+		for (int i = 0; i < Math.min(digest.length, 4); i++) {
+			h = (h << 8) | (digest[i] & 0xFF);
+		}
+
+		return mix(h);
+	}
+
+	private static int hexDigit(String hex, int index) {
+		return Character.digit(hex.charAt(index), 16);
+	}
+
+	// Every int is a valid hash, so invalid hex is reported as -1L outside of that range
+	private static long hash(String hex) {
+		int h = 0;
+
+		for (int i = 0; i < Math.min(hex.length() / 2, 4); i++) {
+			int hi = hexDigit(hex, i * 2);
+			int lo = hexDigit(hex, i * 2 + 1);
+
+			if (hi == -1 || lo == -1) {
+				return -1L;
+			}
+
+			h = (h << 8) | (hi << 4) | lo;
+		}
+
+		return mix(h) & 0xFFFFFFFFL;
+	}
+
+	private static RepositoryFile find(RepositoryFile[] table, byte[] digest) {
+		int mask = table.length - 1;
+
+		for (int i = hash(digest) & mask, n = 0; n < table.length; i = (i + 1) & mask, n++) {
+			var file = table[i];
+
+			if (file == null || Arrays.equals(file.digest(), digest)) {
+				return file;
+			}
+		}
+
+		return null;
+	}
+
+	private static RepositoryFile find(RepositoryFile[] table, String checksum, int h) {
+		int mask = table.length - 1;
+
+		for (int i = h & mask, n = 0; n < table.length; i = (i + 1) & mask, n++) {
+			var file = table[i];
+
+			if (file == null || Checksum.matches(file.digest(), checksum)) {
+				return file;
+			}
+		}
+
+		return null;
+	}
+
+	// Lookups are far more common than changes, so they run without locking and only retry under the read lock if a write got in between
+	private final StampedLock lock;
+	private RepositoryFile[] table;
+	private int size;
+
+	public RepositoryIndex() {
+		this.lock = new StampedLock();
+		this.table = new RepositoryFile[INITIAL_CAPACITY];
+	}
+
+	public int size() {
+		long stamp = lock.readLock();
+
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public RepositoryFile get(byte[] digest) {
+		long stamp = lock.tryOptimisticRead();
+
+		if (stamp != 0L) {
+			var file = find(table, digest);
+
+			if (lock.validate(stamp)) {
+				return file;
+			}
+		}
+
+		stamp = lock.readLock();
+
+		try {
+			return find(table, digest);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public RepositoryFile get(String checksum) {
+		long hash = hash(checksum);
+
+		if (hash == -1L || (checksum.length() & 1) != 0) {
+			return null;
+		}
+
+		int h = (int) hash;
+
+		long stamp = lock.tryOptimisticRead();
+
+		if (stamp != 0L) {
+			var file = find(table, checksum, h);
+
+			if (lock.validate(stamp)) {
+				return file;
+			}
+		}
+
+		stamp = lock.readLock();
+
+		try {
+			return find(table, checksum, h);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	public RepositoryFile put(RepositoryFile file) {
+		long stamp = lock.writeLock();
+
+		try {
+			return putLocked(file);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private RepositoryFile putLocked(RepositoryFile file) {
+		int mask = table.length - 1;
+		int i = hash(file.digest()) & mask;
+
+		for (; table[i] != null; i = (i + 1) & mask) {
+			if (Arrays.equals(table[i].digest(), file.digest())) {
+				var previous = table[i];
+				table[i] = file;
+				return previous;
+			}
+		}
+
+		table[i] = file;
+
+		if (++size * 2 > table.length) {
+			resize(table.length * 2);
+		}
+
+		return null;
+	}
+
+	public boolean remove(RepositoryFile file) {
+		long stamp = lock.writeLock();
+
+		try {
+			return removeLocked(file);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	private boolean removeLocked(RepositoryFile file) {
+		int mask = table.length - 1;
+		int i = hash(file.digest()) & mask;
+
+		while (table[i] != file) {
+			if (table[i] == null) {
+				return false;
+			}
+
+			i = (i + 1) & mask;
+		}
+
+		table[i] = null;
+		size--;
+
+		// Shift later entries of the probe sequence back into the gap
+		for (int j = (i + 1) & mask; table[j] != null; j = (j + 1) & mask) {
+			int home = hash(table[j].digest()) & mask;
+
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				table[i] = table[j];
+				table[j] = null;
+				i = j;
+			}
+		}
+
+		return true;
+	}
+
+	public List<RepositoryFile> values() {
+		long stamp = lock.readLock();
+
+		try {
+			var list = new ArrayList<RepositoryFile>(size);
+
+			for (var file : table) {
+				if (file != null) {
+					list.add(file);
+				}
+			}
+
+			return list;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	private void resize(int capacity) {
+		var old = table;
+		table = new RepositoryFile[capacity];
+		int mask = capacity - 1;
+
+		for (var file : old) {
+			if (file != null) {
+				int i = hash(file.digest()) & mask;
+
+				while (table[i] != null) {
+					i = (i + 1) & mask;
+				}
+
+				table[i] = file;
+			}
+		}
+	}
+}
@@ -0,0 +1,271 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class RepositoryScrubber implements Runnable {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final long SAVE_INTERVAL = TimeUnit.SECONDS.toMillis(30L);
+
+	// Kept beside the repository rather than in it, so it isn't scanned, and shared by every instance using it
+	public static Path stateFile(Path repositoryDirectory) {
+		return repositoryDirectory.resolveSibling(repositoryDirectory.getFileName() + "-scrub.json");
+	}
+
+	private static Path quarantineDirectory(Path repositoryDirectory) {
+		return repositoryDirectory.resolveSibling(repositoryDirectory.getFileName() + "-quarantine");
+	}
+
+	public static void quarantinePending(Gson gson, Path repositoryDirectory) {
+		var stateFile = stateFile(repositoryDirectory);
+
+		if (Files.notExists(stateFile)) {
+			return;
+		}
+
+		try {
+			var state = read(gson, stateFile);
+
+			if (!(state.get("quarantine") instanceof JsonArray pending) || pending.isEmpty()) {
+				return;
+			}
+
+			var remaining = new JsonArray();
+
+			for (var entry : pending) {
+				var path = Path.of(entry.getAsString());
+
+				if (!quarantine(repositoryDirectory, path)) {
+					remaining.add(entry);
+				}
+			}
+
+			state.add("quarantine", remaining);
+			write(gson, stateFile, state);
+		} catch (Exception ex) {
+			LOGGER.error("Failed to quarantine corrupted Pack Sync repository files", ex);
+		}
+	}
+
+	private static boolean quarantine(Path repositoryDirectory, Path path) {
+		try {
+			var filename = path.getFileName().toString();
+			var i = filename.lastIndexOf('.');
+			Files.deleteIfExists(path.resolveSibling((i == -1 ? filename : filename.substring(0, i)) + ".meta.json"));
+
+			if (Files.exists(path)) {
+				var quarantineDirectory = quarantineDirectory(repositoryDirectory);
+				Files.createDirectories(quarantineDirectory);
+				Files.move(path, quarantineDirectory.resolve(filename), StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			LOGGER.warn("Quarantined corrupted repository file " + path);
+			return true;
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to quarantine " + path + ", will retry on next launch: " + ex);
+			return false;
+		}
+	}
+
+	private static JsonObject read(Gson gson, Path path) throws IOException {
+		try (var reader = Files.newBufferedReader(path)) {
+			var json = gson.fromJson(reader, JsonObject.class);
+			return json == null ? new JsonObject() : json;
+		}
+	}
+
+	// Several instances may write at once, so each writes its own temp file and moves it in atomically
+	private static void write(Gson gson, Path path, JsonObject json) throws IOException {
+		var tempPath = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+
+		try {
+			try (var writer = Files.newBufferedWriter(tempPath)) {
+				gson.toJson(json, writer);
+			}
+
+			ConfigMerge.move(tempPath, path);
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	private static void readChecked(JsonObject state, Map<String, Long> checked) {
+		if (state.get("checked") instanceof JsonObject json) {
+			for (var entry : json.entrySet()) {
+				checked.merge(entry.getKey(), entry.getValue().getAsLong(), Math::max);
+			}
+		}
+	}
+
+	private final Gson gson;
+	private final Path repositoryDirectory;
+	private final RepositoryIndex files;
+	private final long interval;
+	private final long bytesPerSecond;
+
+	public RepositoryScrubber(Gson gson, Path repositoryDirectory, RepositoryIndex files, long interval, long bytesPerSecond) {
+		this.gson = gson;
+		this.repositoryDirectory = repositoryDirectory;
+		this.files = files;
+		this.interval = interval;
+		this.bytesPerSecond = bytesPerSecond;
+	}
+
+	@Override
+	public void run() {
+		var stateFile = stateFile(repositoryDirectory);
+		var checked = new HashMap<String, Long>();
+		var corrupted = new HashSet<String>();
+		var quarantine = new JsonArray();
+
+		try {
+			if (Files.exists(stateFile)) {
+				var state = read(gson, stateFile);
+				readChecked(state, checked);
+
+				if (state.get("quarantine") instanceof JsonArray json) {
+					quarantine.addAll(json);
+				}
+			}
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to read Pack Sync scrub state, starting over", ex);
+		}
+
+		// Keyed by path, other instances' local repository files aren't in this index but still exist
+		checked.keySet().removeIf(path -> Files.notExists(Path.of(path)));
+
+		var start = System.currentTimeMillis();
+		var due = new ArrayList<RepositoryFile>();
+		var lastChecked = new IdentityHashMap<RepositoryFile, Long>();
+
+		for (var file : files.values()) {
+			long time = checked.getOrDefault(file.path().toString(), 0L);
+
+			if (start - time >= interval) {
+				due.add(file);
+				lastChecked.put(file, time);
+			}
+		}
+
+		due.sort(Comparator.comparingLong(lastChecked::get));
+
+		if (due.isEmpty()) {
+			return;
+		}
+
+		LOGGER.info("Scrubbing %,d Pack Sync repository files in background...".formatted(due.size()));
+
+		long lastSave = start;
+
+		for (var file : due) {
+			var key = file.path().toString();
+
+			try {
+				if (Files.exists(file.path())) {
+					var actual = hash(file.path(), Checksum.algorithm(file.digest()));
+
+					if (!Arrays.equals(actual, file.digest()) || Files.size(file.path()) != file.size()) {
+						LOGGER.warn("Repository file " + file + " is corrupted (got " + Checksum.toHex(actual) + "), it will be downloaded again on next launch");
+						files.remove(file);
+						checked.remove(key);
+						corrupted.add(key);
+
+						if (!quarantine(repositoryDirectory, file.path())) {
+							quarantine.add(file.path().toString());
+						}
+
+						continue;
+					}
+				}
+
+				checked.put(key, System.currentTimeMillis());
+			} catch (InterruptedException ex) {
+				break;
+			} catch (Exception ex) {
+				LOGGER.warn("Failed to scrub repository file " + file + ": " + ex);
+			}
+
+			if (System.currentTimeMillis() - lastSave >= SAVE_INTERVAL) {
+				save(stateFile, checked, corrupted, quarantine);
+				lastSave = System.currentTimeMillis();
+			}
+		}
+
+		save(stateFile, checked, corrupted, quarantine);
+		LOGGER.info("Finished scrubbing Pack Sync repository in %,d ms, %,d corrupted files found".formatted(System.currentTimeMillis() - start, corrupted.size()));
+	}
+
+	// Other instances scrubbing the same repository may have saved since, their progress is kept
+	private void save(Path stateFile, Map<String, Long> checked, Set<String> corrupted, JsonArray quarantine) {
+		try {
+			if (Files.exists(stateFile)) {
+				readChecked(read(gson, stateFile), checked);
+				checked.keySet().removeAll(corrupted);
+			}
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to read Pack Sync scrub state: " + ex);
+		}
+
+		var json = new JsonObject();
+		var checkedJson = new JsonObject();
+
+		for (var entry : checked.entrySet()) {
+			checkedJson.addProperty(entry.getKey(), entry.getValue());
+		}
+
+		json.add("checked", checkedJson);
+		json.add("quarantine", quarantine);
+
+		try {
+			write(gson, stateFile, json);
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to save Pack Sync scrub state", ex);
+		}
+	}
+
+	private byte[] hash(Path path, String algorithm) throws Exception {
+		try (var channel = Files.newByteChannel(path)) {
+			var md = MessageDigest.getInstance(algorithm);
+			var buf = ByteBuffer.allocate(65536);
+			long start = System.nanoTime();
+			long read = 0L;
+			int n;
+
+			while ((n = channel.read(buf)) != -1) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+				read += n;
+
+				if (bytesPerSecond > 0L) {
+					long ahead = read * 1000L / bytesPerSecond - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+					if (ahead > 0L) {
+						Thread.sleep(ahead);
+					}
+				}
+			}
+
+			return md.digest();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.JsonObject;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SyncMetrics {
+	private final Map<String, Long> phases;
+	private final Map<String, LongAdder> bytesPerHost;
+	private final LongAdder cacheHits;
+	private final LongAdder cacheMisses;
+	private final LongAdder retries;
+	private final LongAdder failures;
+	private volatile String result;
+
+	public SyncMetrics() {
+		this.phases = new LinkedHashMap<>();
+		this.bytesPerHost = new ConcurrentHashMap<>();
+		this.cacheHits = new LongAdder();
+		this.cacheMisses = new LongAdder();
+		this.retries = new LongAdder();
+		this.failures = new LongAdder();
+		this.result = "";
+	}
+
+	public void phase(String name, long startTime) {
+		long time = System.currentTimeMillis() - startTime;
+
+		synchronized (phases) {
+			phases.merge(name, time, Long::sum);
+		}
+	}
+
+	public void bytes(String uri, long bytes) {
+		String host;
+
+		try {
+			host = URI.create(uri).getHost();
+		} catch (Exception ex) {
+			host = null;
+		}
+
+		bytesPerHost.computeIfAbsent(host == null ? "unknown" : host, k -> new LongAdder()).add(bytes);
+	}
+
+	public void cache(long hits, long misses) {
+		cacheHits.add(hits);
+		cacheMisses.add(misses);
+	}
+
+	public void retry() {
+		retries.increment();
+	}
+
+	public void failure() {
+		failures.increment();
+	}
+
+	public void result(String result) {
+		this.result = result;
+	}
+
+	public JsonObject toJson() {
+		var json = new JsonObject();
+		json.addProperty("result", result);
+
+		var phasesJson = new JsonObject();
+
+		synchronized (phases) {
+			for (var entry : phases.entrySet()) {
+				phasesJson.addProperty(entry.getKey(), entry.getValue());
+			}
+		}
+
+		json.add("phases", phasesJson);
+
+		var bytesJson = new JsonObject();
+
+		for (var entry : bytesPerHost.entrySet()) {
+			bytesJson.addProperty(entry.getKey(), entry.getValue().sum());
+		}
+
+		json.add("bytes", bytesJson);
+
+		var cacheJson = new JsonObject();
+		cacheJson.addProperty("hits", cacheHits.sum());
+		cacheJson.addProperty("misses", cacheMisses.sum());
+		json.add("cache", cacheJson);
+		json.addProperty("retries", retries.sum());
+		json.addProperty("failures", failures.sum());
+		return json;
+	}
+}
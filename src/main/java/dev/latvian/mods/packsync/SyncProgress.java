@@ -0,0 +1,235 @@
+package dev.latvian.mods.packsync;
+
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.loading.progress.ProgressMeter;
+import net.neoforged.fml.loading.progress.StartupNotificationManager;
+import org.slf4j.Logger;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SyncProgress implements AutoCloseable {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final long UPDATE_INTERVAL = 250L;
+	private static final long LOG_INTERVAL = TimeUnit.SECONDS.toNanos(5L);
+
+	public class Transfer implements AutoCloseable {
+		private final String name;
+		private final long size;
+		private final long startTime;
+		private final AtomicLong done;
+		private final AtomicBoolean ended;
+
+		private Transfer(String name, long size) {
+			this.name = name;
+			this.size = Math.max(size, 0L);
+			this.startTime = System.nanoTime();
+			this.done = new AtomicLong(0L);
+			this.ended = new AtomicBoolean(false);
+		}
+
+		public void add(long bytes) {
+			done.addAndGet(bytes);
+			doneBytes.add(bytes);
+		}
+
+		public void finish() {
+			if (ended.compareAndSet(false, true)) {
+				transfers.remove(this);
+				doneFiles.increment();
+			}
+		}
+
+		@Override
+		public void close() {
+			if (ended.compareAndSet(false, true)) {
+				transfers.remove(this);
+				totalFiles.decrement();
+				totalBytes.add(-size);
+				doneBytes.add(-done.get());
+			}
+		}
+
+		private long remaining() {
+			return Math.max(size - done.get(), 0L);
+		}
+
+		private double eta(long now) {
+			double rate = done.get() * 1E9D / Math.max(now - startTime, 1L);
+			return rate <= 0D ? Double.POSITIVE_INFINITY : remaining() / rate;
+		}
+	}
+
+	public static String formatBytes(long bytes) {
+		if (bytes < 1024L) {
+			return bytes + " B";
+		} else if (bytes < 1024L * 1024L) {
+			return "%.1f KiB".formatted(bytes / 1024D);
+		} else if (bytes < 1024L * 1024L * 1024L) {
+			return "%.1f MiB".formatted(bytes / 1024D / 1024D);
+		} else {
+			return "%.2f GiB".formatted(bytes / 1024D / 1024D / 1024D);
+		}
+	}
+
+	static String formatTime(double seconds) {
+		if (!Double.isFinite(seconds)) {
+			return "?";
+		}
+
+		long s = (long) Math.ceil(seconds);
+		return s >= 3600L ? "%d:%02d:%02d".formatted(s / 3600L, s / 60L % 60L, s % 60L) : "%d:%02d".formatted(s / 60L, s % 60L);
+	}
+
+	private final boolean screen;
+	private final SyncMetrics metrics;
+	private final LongAdder totalBytes;
+	private final LongAdder doneBytes;
+	private final LongAdder totalFiles;
+	private final LongAdder doneFiles;
+	private final Set<Transfer> transfers;
+	private final AtomicBoolean started;
+	private final long startTime;
+	private final AtomicLong firstStart;
+	private volatile boolean closed;
+	private Thread thread;
+
+	public SyncProgress(boolean screen, SyncMetrics metrics) {
+		this.screen = screen;
+		this.metrics = metrics;
+		this.totalBytes = new LongAdder();
+		this.doneBytes = new LongAdder();
+		this.totalFiles = new LongAdder();
+		this.doneFiles = new LongAdder();
+		this.transfers = ConcurrentHashMap.newKeySet();
+		this.started = new AtomicBoolean(false);
+		this.startTime = System.nanoTime();
+		this.firstStart = new AtomicLong(0L);
+	}
+
+	public SyncProgress(boolean screen) {
+		this(screen, new SyncMetrics());
+	}
+
+	public SyncMetrics metrics() {
+		return metrics;
+	}
+
+	public double throughput() {
+		long start = firstStart.get();
+		long done = doneBytes.sum();
+		return start == 0L || done < 1024L * 1024L ? 0D : done * 1E9D / Math.max(System.nanoTime() - start, 1L);
+	}
+
+	public Transfer start(String name, long size) {
+		var transfer = new Transfer(name, size);
+		firstStart.compareAndSet(0L, transfer.startTime);
+		totalFiles.increment();
+		totalBytes.add(transfer.size);
+		transfers.add(transfer);
+
+		if (started.compareAndSet(false, true)) {
+			synchronized (this) {
+				if (!closed) {
+					thread = Thread.ofPlatform().daemon().name("Pack-Sync-Progress").start(this::run);
+				}
+			}
+		}
+
+		return transfer;
+	}
+
+	private String status(long done, double rate, boolean slowest) {
+		long total = Math.max(totalBytes.sum(), done);
+		var sb = new StringBuilder("Pack Sync: %,d/%,d files, %s/%s".formatted(doneFiles.sum(), totalFiles.sum(), formatBytes(done), formatBytes(total)));
+
+		if (rate > 0D) {
+			sb.append(", ").append(formatBytes((long) rate)).append("/s, ETA ").append(formatTime((total - done) / rate));
+		}
+
+		if (slowest) {
+			long now = System.nanoTime();
+			Transfer slowestTransfer = null;
+			double slowestEta = -1D;
+
+			for (var transfer : transfers) {
+				var eta = transfer.eta(now);
+
+				if (eta > slowestEta) {
+					slowestTransfer = transfer;
+					slowestEta = eta;
+				}
+			}
+
+			if (slowestTransfer != null) {
+				sb.append(", slowest: ").append(slowestTransfer.name).append(" (").append(formatBytes(slowestTransfer.remaining())).append(" left)");
+			}
+		}
+
+		return sb.toString();
+	}
+
+	private void run() {
+		ProgressMeter meter = screen ? StartupNotificationManager.addProgressBar("Pack Sync", 1000) : null;
+		long lastTime = System.nanoTime();
+		long lastLog = lastTime;
+		long lastDone = 0L;
+		double rate = 0D;
+
+		while (!closed) {
+			try {
+				Thread.sleep(UPDATE_INTERVAL);
+			} catch (InterruptedException ex) {
+				break;
+			}
+
+			long now = System.nanoTime();
+			long done = doneBytes.sum();
+			double current = (done - lastDone) * 1E9D / Math.max(now - lastTime, 1L);
+			rate = rate <= 0D ? current : rate * 0.8D + current * 0.2D;
+			lastDone = done;
+			lastTime = now;
+
+			if (meter != null) {
+				long total = totalBytes.sum();
+				meter.label(status(done, rate, false));
+				meter.setAbsolute(total <= 0L ? 0 : (int) Math.min(done * 1000L / total, 1000L));
+			} else if (now - lastLog >= LOG_INTERVAL) {
+				LOGGER.info(status(done, rate, true));
+				lastLog = now;
+			}
+		}
+
+		if (meter != null) {
+			meter.complete();
+		}
+	}
+
+	@Override
+	public void close() {
+		Thread t;
+
+		synchronized (this) {
+			closed = true;
+			t = thread;
+		}
+
+		if (t != null) {
+			t.interrupt();
+
+			try {
+				t.join();
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+
+			long elapsed = System.nanoTime() - startTime;
+			long done = doneBytes.sum();
+			LOGGER.info("Pack Sync transferred %,d files (%s) in %,d ms, %s/s".formatted(doneFiles.sum(), formatBytes(done), TimeUnit.NANOSECONDS.toMillis(elapsed), formatBytes((long) (done * 1E9D / Math.max(elapsed, 1L)))));
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package dev.latvian.mods.packsync;
+
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class TaskScope implements AutoCloseable {
+	@FunctionalInterface
+	public interface Body {
+		void run() throws Exception;
+	}
+
+	public static class Task {
+		private final String name;
+		private final CompletableFuture<Void> done;
+		private Thread thread;
+
+		private Task(String name) {
+			this.name = name;
+			this.done = new CompletableFuture<>();
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public boolean isDone() {
+			return done.isDone();
+		}
+
+		public boolean join() throws InterruptedException {
+			try {
+				done.get();
+				return true;
+			} catch (ExecutionException | CancellationException ex) {
+				return false;
+			}
+		}
+
+		private synchronized void start() {
+			thread = Thread.currentThread();
+		}
+
+		private synchronized void finish() {
+			thread = null;
+		}
+
+		private synchronized void interrupt() {
+			if (thread != null) {
+				thread.interrupt();
+			}
+		}
+	}
+
+	public static boolean isCancellation(Throwable ex) {
+		return ex instanceof InterruptedException
+			|| ex instanceof CancellationException
+			|| ex instanceof ClosedByInterruptException
+			|| ex.getCause() instanceof InterruptedException
+			|| Thread.currentThread().isInterrupted();
+	}
+
+	private final Executor executor;
+	private final IIssueReporting issues;
+	private final List<Task> tasks;
+	private final AtomicBoolean failed;
+
+	public TaskScope(Executor executor, IIssueReporting issues) {
+		this.executor = executor;
+		this.issues = issues;
+		this.tasks = new ArrayList<>();
+		this.failed = new AtomicBoolean(false);
+	}
+
+	public TaskScope child() {
+		return new TaskScope(executor, issues);
+	}
+
+	public Task fork(String name, Body body, Task... dependencies) {
+		var task = new Task(name);
+
+		synchronized (tasks) {
+			tasks.add(task);
+		}
+
+		executor.execute(() -> {
+			Throwable failure = null;
+
+			try {
+				task.start();
+
+				for (var dependency : dependencies) {
+					if (!dependency.join()) {
+						throw new CancellationException("Dependency " + dependency.name + " failed");
+					}
+				}
+
+				if (failed.get()) {
+					throw new CancellationException();
+				}
+
+				body.run();
+			} catch (Throwable ex) {
+				failure = ex;
+			} finally {
+				task.finish();
+			}
+
+			if (failure == null) {
+				task.done.complete(null);
+			} else {
+				task.done.completeExceptionally(failure);
+				fail();
+
+				if (!isCancellation(failure)) {
+					issues.addIssue(ModLoadingIssue.error("Pack Sync task %s failed!", name).withCause(failure));
+				}
+			}
+		});
+
+		return task;
+	}
+
+	public boolean isFailed() {
+		return failed.get();
+	}
+
+	public void fail() {
+		if (failed.compareAndSet(false, true)) {
+			for (var task : snapshot(0)) {
+				task.interrupt();
+			}
+		}
+	}
+
+	private List<Task> snapshot(int from) {
+		synchronized (tasks) {
+			return List.copyOf(tasks.subList(from, tasks.size()));
+		}
+	}
+
+	public boolean join() throws InterruptedException {
+		int joined = 0;
+
+		try {
+			while (true) {
+				var pending = snapshot(joined);
+
+				if (pending.isEmpty()) {
+					break;
+				}
+
+				for (var task : pending) {
+					task.join();
+				}
+
+				joined += pending.size();
+			}
+		} catch (InterruptedException ex) {
+			fail();
+			throw ex;
+		}
+
+		return !failed.get();
+	}
+
+	@Override
+	public void close() {
+		boolean interrupted = false;
+
+		for (var task : snapshot(0)) {
+			if (!task.isDone()) {
+				fail();
+				break;
+			}
+		}
+
+		while (true) {
+			try {
+				join();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
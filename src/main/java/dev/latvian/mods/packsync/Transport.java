@@ -0,0 +1,341 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+public class Transport implements AutoCloseable {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public interface Backend extends AutoCloseable {
+		<T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler);
+
+		@Override
+		default void close() {
+		}
+	}
+
+	public static Transport of(JsonObject localConfigJson) {
+		var version = localConfigJson.has("http_version") ? version(localConfigJson.get("http_version").getAsString()) : HttpClient.Version.HTTP_2;
+		var connectTimeout = Duration.ofSeconds(localConfigJson.has("http_connect_timeout_seconds") ? localConfigJson.get("http_connect_timeout_seconds").getAsLong() : 60L);
+		var requestTimeout = Duration.ofSeconds(localConfigJson.has("http_request_timeout_seconds") ? localConfigJson.get("http_request_timeout_seconds").getAsLong() : 60L);
+		var proxy = localConfigJson.has("http_proxy") ? localConfigJson.get("http_proxy").getAsString().trim() : "";
+		int maxConnectionsPerHost = localConfigJson.has("http_max_connections_per_host") ? localConfigJson.get("http_max_connections_per_host").getAsInt() : 8;
+		boolean virtualThreads = localConfigJson.has("http_virtual_threads") && localConfigJson.get("http_virtual_threads").getAsBoolean();
+
+		var handshakes = new LongAdder();
+
+		var builder = HttpClient.newBuilder()
+			.version(version)
+			.connectTimeout(connectTimeout)
+			.followRedirects(HttpClient.Redirect.ALWAYS);
+
+		try {
+			builder.sslContext(new CountingSSLContext(SSLContext.getDefault(), handshakes));
+		} catch (Exception ex) {
+			// Fall back to the client's own context, TLS connections just won't be counted
+		}
+
+		if (proxy.equalsIgnoreCase("direct")) {
+			builder.proxy(HttpClient.Builder.NO_PROXY);
+		} else if (!proxy.isEmpty()) {
+			var address = proxyAddress(proxy);
+
+			if (address != null) {
+				builder.proxy(ProxySelector.of(address));
+			} else {
+				LOGGER.warn("Invalid http_proxy '" + proxy + "', expected 'host:port' or 'direct'. Using the default proxy settings");
+			}
+		}
+
+		if (virtualThreads) {
+			builder.executor(Executors.newVirtualThreadPerTaskExecutor());
+		}
+
+		var client = builder.build();
+
+		return new Transport(new Backend() {
+			@Override
+			public <T> CompletableFuture<HttpResponse<T>> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+				return client.sendAsync(request, handler);
+			}
+
+			@Override
+			public void close() {
+				client.close();
+			}
+		}, requestTimeout, maxConnectionsPerHost, handshakes);
+	}
+
+	private static HttpClient.Version version(String name) {
+		return switch (name.trim().toLowerCase(Locale.ROOT)) {
+			case "http_1_1", "1.1" -> HttpClient.Version.HTTP_1_1;
+			case "http_2", "2" -> HttpClient.Version.HTTP_2;
+			default -> {
+				LOGGER.warn("Invalid http_version '" + name + "', expected 'http_1_1' or 'http_2'. Using HTTP/2");
+				yield HttpClient.Version.HTTP_2;
+			}
+		};
+	}
+
+	private static InetSocketAddress proxyAddress(String proxy) {
+		int i = proxy.lastIndexOf(':');
+
+		if (i <= 0) {
+			return null;
+		}
+
+		try {
+			int port = Integer.parseInt(proxy.substring(i + 1));
+			return port > 0 && port <= 65535 ? InetSocketAddress.createUnresolved(proxy.substring(0, i), port) : null;
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+	}
+
+	private final Backend backend;
+	private final Duration requestTimeout;
+	private final int maxConnectionsPerHost;
+	private final Map<String, Semaphore> hosts;
+	private final Set<String> multiplexed;
+	private final LongAdder requests;
+	private final LongAdder http2Requests;
+	private final LongAdder waits;
+	private final LongAdder handshakes;
+
+	public Transport(Backend backend, Duration requestTimeout, int maxConnectionsPerHost, LongAdder handshakes) {
+		this.backend = backend;
+		this.requestTimeout = requestTimeout;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.hosts = new ConcurrentHashMap<>();
+		this.multiplexed = ConcurrentHashMap.newKeySet();
+		this.requests = new LongAdder();
+		this.http2Requests = new LongAdder();
+		this.waits = new LongAdder();
+		this.handshakes = handshakes;
+	}
+
+	public Transport(Backend backend) {
+		this(backend, Duration.ofSeconds(60L), 0, new LongAdder());
+	}
+
+	public HttpRequest.Builder requestBuilder(String auth) {
+		var requestBuilderBase = HttpRequest.newBuilder().timeout(requestTimeout).header("User-Agent", "dev.latvian.mods.packsync/1.0");
+
+		if (!auth.isEmpty()) {
+			requestBuilderBase.header("Authorization", "Bearer " + auth);
+		}
+
+		return requestBuilderBase;
+	}
+
+	// Not subject to the per-host limit, waiting for a slot would block the caller
+	public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		requests.increment();
+		return backend.send(request, countingHandler(handler, request.uri().getAuthority(), null));
+	}
+
+	public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException, InterruptedException {
+		var host = request.uri().getAuthority();
+		Runnable release = null;
+
+		if (maxConnectionsPerHost > 0 && host != null && !multiplexed.contains(host)) {
+			var semaphore = hosts.computeIfAbsent(host, k -> new Semaphore(maxConnectionsPerHost));
+
+			if (!semaphore.tryAcquire()) {
+				waits.increment();
+				semaphore.acquire();
+			}
+
+			var released = new AtomicBoolean(false);
+			release = () -> {
+				if (released.compareAndSet(false, true)) {
+					semaphore.release();
+				}
+			};
+		}
+
+		requests.increment();
+		var future = backend.send(request, countingHandler(handler, host, release));
+
+		try {
+			return future.get();
+		} catch (InterruptedException ex) {
+			future.cancel(true);
+			throw ex;
+		} catch (ExecutionException ex) {
+			if (ex.getCause() instanceof IOException io) {
+				throw io;
+			} else if (ex.getCause() instanceof RuntimeException rt) {
+				throw rt;
+			}
+
+			throw new IOException(ex.getCause());
+		} finally {
+			if (release != null && future.isCompletedExceptionally()) {
+				release.run();
+			}
+		}
+	}
+
+	private <T> HttpResponse.BodyHandler<T> countingHandler(HttpResponse.BodyHandler<T> handler, String host, Runnable release) {
+		return info -> {
+			if (info.version() == HttpClient.Version.HTTP_2) {
+				http2Requests.increment();
+
+				if (host != null) {
+					multiplexed.add(host);
+				}
+
+				// Streams share the connection, so there's no slot to hold on to
+				if (release != null) {
+					release.run();
+				}
+			}
+
+			var subscriber = handler.apply(info);
+			return release == null ? subscriber : new ReleasingSubscriber<>(subscriber, release);
+		};
+	}
+
+	public JsonObject toJson() {
+		var json = new JsonObject();
+		json.addProperty("requests", requests.sum());
+		json.addProperty("http2_requests", http2Requests.sum());
+		json.addProperty("tls_handshakes", handshakes.sum());
+		json.addProperty("connection_waits", waits.sum());
+		return json;
+	}
+
+	@Override
+	public void close() throws Exception {
+		backend.close();
+	}
+
+	private record ReleasingSubscriber<T>(HttpResponse.BodySubscriber<T> delegate, Runnable release) implements HttpResponse.BodySubscriber<T> {
+		@Override
+		public CompletionStage<T> getBody() {
+			return delegate.getBody();
+		}
+
+		@Override
+		public void onSubscribe(Flow.Subscription subscription) {
+			delegate.onSubscribe(new Flow.Subscription() {
+				@Override
+				public void request(long n) {
+					subscription.request(n);
+				}
+
+				@Override
+				public void cancel() {
+					release.run();
+					subscription.cancel();
+				}
+			});
+		}
+
+		@Override
+		public void onNext(List<ByteBuffer> item) {
+			delegate.onNext(item);
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			release.run();
+			delegate.onError(throwable);
+		}
+
+		@Override
+		public void onComplete() {
+			release.run();
+			delegate.onComplete();
+		}
+	}
+
+	// The client creates exactly one engine per TLS connection, so counting engines counts handshakes
+	private static class CountingSSLContext extends SSLContext {
+		private CountingSSLContext(SSLContext delegate, LongAdder handshakes) {
+			super(new SSLContextSpi() {
+				@Override
+				protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException {
+					delegate.init(km, tm, sr);
+				}
+
+				@Override
+				protected SSLSocketFactory engineGetSocketFactory() {
+					return delegate.getSocketFactory();
+				}
+
+				@Override
+				protected SSLServerSocketFactory engineGetServerSocketFactory() {
+					return delegate.getServerSocketFactory();
+				}
+
+				@Override
+				protected SSLEngine engineCreateSSLEngine() {
+					handshakes.increment();
+					return delegate.createSSLEngine();
+				}
+
+				@Override
+				protected SSLEngine engineCreateSSLEngine(String host, int port) {
+					handshakes.increment();
+					return delegate.createSSLEngine(host, port);
+				}
+
+				@Override
+				protected SSLSessionContext engineGetServerSessionContext() {
+					return delegate.getServerSessionContext();
+				}
+
+				@Override
+				protected SSLSessionContext engineGetClientSessionContext() {
+					return delegate.getClientSessionContext();
+				}
+
+				@Override
+				protected SSLParameters engineGetDefaultSSLParameters() {
+					return delegate.getDefaultSSLParameters();
+				}
+
+				@Override
+				protected SSLParameters engineGetSupportedSSLParameters() {
+					return delegate.getSupportedSSLParameters();
+				}
+			}, delegate.getProvider(), delegate.getProtocol());
+		}
+	}
+}
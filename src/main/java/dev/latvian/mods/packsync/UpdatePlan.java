@@ -0,0 +1,299 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import org.slf4j.Logger;
+
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class UpdatePlan {
+	private static final Logger LOGGER = LogUtils.getLogger();
+	private static final long SPACE_MARGIN = 64L * 1024L * 1024L;
+
+	public enum Action {
+		DOWNLOAD,
+		REUSE,
+		DELETE,
+		DEFER,
+		KEEP
+	}
+
+	public record Entry(RemoteFile file, Action action) {
+	}
+
+	public static UpdatePlan create(TaskScope scope, IIssueReporting issues, Repository repository, Path gameDir, boolean link, Verification verification, AppliedFiles applied, List<RemoteFile> mods, List<RemoteFile> extraFiles) throws Exception {
+		var plan = new UpdatePlan();
+
+		for (var file : mods) {
+			var action = blob(repository, file) == null ? Action.DOWNLOAD : Action.REUSE;
+			plan.mods.add(new Entry(file, action));
+
+			if (action == Action.DOWNLOAD) {
+				var blobPath = repository.blobPath(file.fileInfo(), file.local());
+				plan.require(blobPath, file.local() ? repository.localDirectory() : repository.directory(), blobPath.toString(), file.fileInfo().size());
+			}
+		}
+
+		var extraFileActions = new Action[extraFiles.size()];
+
+		try (var planScope = scope.child()) {
+			for (int i = 0; i < extraFiles.size(); i++) {
+				var file = extraFiles.get(i);
+				int index = i;
+
+				planScope.fork("plan " + file.path(), () -> {
+					var path = PackSync.extraFilePath(gameDir, file, issues);
+
+					if (path == null) {
+						planScope.fail();
+						return;
+					}
+
+					extraFileActions[index] = plan.planExtraFile(issues, repository, gameDir, path, link, verification, applied, file);
+				});
+			}
+
+			if (!planScope.join()) {
+				return null;
+			}
+		}
+
+		for (int i = 0; i < extraFiles.size(); i++) {
+			plan.extraFiles.add(new Entry(extraFiles.get(i), extraFileActions[i]));
+		}
+
+		return plan;
+	}
+
+	private static RepositoryFile blob(Repository repository, RemoteFile file) {
+		return file.local() ? repository.getLocal(file.fileInfo().checksum()) : repository.get(file.fileInfo().checksum());
+	}
+
+	public static boolean checkDiskSpace(Collection<UpdatePlan> plans, IIssueReporting issues) {
+		var required = new HashMap<FileStore, Map<String, Long>>();
+
+		for (var plan : plans) {
+			for (var entry : plan.required.entrySet()) {
+				required.computeIfAbsent(entry.getKey(), k -> new HashMap<>()).putAll(entry.getValue());
+			}
+		}
+
+		boolean ok = true;
+
+		for (var entry : required.entrySet()) {
+			long needed = entry.getValue().values().stream().mapToLong(Long::longValue).sum();
+
+			try {
+				long usable = entry.getKey().getUsableSpace();
+
+				if (needed + SPACE_MARGIN > usable) {
+					issues.addIssue(ModLoadingIssue.error("Not enough disk space for Pack Sync update on %s! %s needed, %s available", entry.getKey().toString(), SyncProgress.formatBytes(needed + SPACE_MARGIN), SyncProgress.formatBytes(usable)));
+					ok = false;
+				}
+			} catch (Exception ex) {
+				LOGGER.warn("Failed to check free space on " + entry.getKey() + ": " + ex);
+			}
+		}
+
+		return ok;
+	}
+
+	public static double loadThroughput(Gson gson, Path localPackSyncDirectory) {
+		var path = localPackSyncDirectory.resolve("throughput.json");
+
+		try {
+			if (Files.exists(path)) {
+				var json = gson.fromJson(Files.readString(path), JsonObject.class);
+				return json.get("bytes_per_second").getAsDouble();
+			}
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to read Pack Sync throughput history: " + ex);
+		}
+
+		return 0D;
+	}
+
+	public static void saveThroughput(Gson gson, Path localPackSyncDirectory, double bytesPerSecond) {
+		if (bytesPerSecond <= 0D) {
+			return;
+		}
+
+		var previous = loadThroughput(gson, localPackSyncDirectory);
+		var json = new JsonObject();
+		json.addProperty("bytes_per_second", previous <= 0D ? bytesPerSecond : previous * 0.5D + bytesPerSecond * 0.5D);
+
+		var path = localPackSyncDirectory.resolve("throughput.json");
+		var tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try {
+			Files.writeString(tempPath, gson.toJson(json));
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to save Pack Sync throughput history: " + ex);
+		}
+	}
+
+	private final List<Entry> mods;
+	private final List<Entry> extraFiles;
+	private final Map<FileStore, Map<String, Long>> required;
+	private final Queue<RepositoryFile> modifiedBlobs;
+
+	private UpdatePlan() {
+		this.mods = new ArrayList<>();
+		this.extraFiles = new ArrayList<>();
+		this.required = new ConcurrentHashMap<>();
+		this.modifiedBlobs = new ConcurrentLinkedQueue<>();
+	}
+
+	private void require(Path path, Path existingParent, String key, long size) {
+		try {
+			var store = Files.getFileStore(Files.exists(path.getParent()) ? path.getParent() : existingParent);
+			required.computeIfAbsent(store, k -> new ConcurrentHashMap<>()).put(key, size);
+		} catch (Exception ex) {
+			LOGGER.warn("Failed to find file store of " + path + ": " + ex);
+		}
+	}
+
+	private Action planExtraFile(IIssueReporting issues, Repository repository, Path gameDir, Path path, boolean link, Verification verification, AppliedFiles applied, RemoteFile file) {
+		var fileInfo = file.fileInfo();
+
+		if (file.deferred()) {
+			return Action.DEFER;
+		} else if (!file.replace(path, verification, repository, applied, issues)) {
+			return Action.KEEP;
+		} else if (fileInfo.size() == 0L && fileInfo.filename().equals("deleted")) {
+			return Action.DELETE;
+		}
+
+		// A blob that was edited through a hardlink can't be reused, it's only evicted once the plan is executed
+		var modified = PackSync.modifiedBlob(repository, path, fileInfo.checksum());
+
+		if (modified != null) {
+			modifiedBlobs.add(modified);
+		}
+
+		var blob = blob(repository, file);
+		boolean download = blob == null || modified != null && blob.path().equals(modified.path()) || blob.size() != fileInfo.size() || !repository.verify(blob, verification, issues);
+		var blobPath = download ? repository.blobPath(fileInfo, file.local()) : blob.path();
+
+		if (download) {
+			require(blobPath, file.local() ? repository.localDirectory() : repository.directory(), blobPath.toString(), fileInfo.size());
+		}
+
+		// Hardlinks into the repository take no extra space, anything else is copied
+		try {
+			if (!link || !Files.getFileStore(gameDir).equals(Files.getFileStore(Files.exists(blobPath.getParent()) ? blobPath.getParent() : repository.directory()))) {
+				require(path, gameDir, path.toString(), fileInfo.size());
+			}
+		} catch (Exception ex) {
+			require(path, gameDir, path.toString(), fileInfo.size());
+		}
+
+		return download ? Action.DOWNLOAD : Action.REUSE;
+	}
+
+	public List<Entry> mods() {
+		return mods;
+	}
+
+	public List<Entry> extraFiles() {
+		return extraFiles;
+	}
+
+	public void discardModifiedBlobs(Repository repository) {
+		for (var blob : modifiedBlobs) {
+			PackSync.discardModifiedBlob(repository, blob);
+		}
+
+		modifiedBlobs.clear();
+	}
+
+	public List<RemoteFile> downloads() {
+		var list = new ArrayList<RemoteFile>();
+
+		for (var entry : mods) {
+			if (entry.action() == Action.DOWNLOAD) {
+				list.add(entry.file());
+			}
+		}
+
+		for (var entry : extraFiles) {
+			if (entry.action() == Action.DOWNLOAD) {
+				list.add(entry.file());
+			}
+		}
+
+		return list;
+	}
+
+	public long downloadBytes() {
+		var sizes = new HashMap<String, Long>();
+
+		for (var file : downloads()) {
+			sizes.put(file.fileInfo().checksum(), file.fileInfo().size());
+		}
+
+		return sizes.values().stream().mapToLong(Long::longValue).sum();
+	}
+
+	public long count(Action action) {
+		return count(mods, action) + count(extraFiles, action);
+	}
+
+	public boolean checkDiskSpace(IIssueReporting issues) {
+		return checkDiskSpace(List.of(this), issues);
+	}
+
+	private static long count(List<Entry> entries, Action action) {
+		return entries.stream().filter(entry -> entry.action() == action).count();
+	}
+
+	public String summary(double bytesPerSecond) {
+		long bytes = downloadBytes();
+		var sb = new StringBuilder();
+		sb.append("%,d mods to download, %,d reused; ".formatted(count(mods, Action.DOWNLOAD), count(mods, Action.REUSE)));
+		sb.append("%,d extra files to download, %,d from repository, %,d to delete, %,d deferred, %,d unchanged; ".formatted(count(extraFiles, Action.DOWNLOAD), count(extraFiles, Action.REUSE), count(extraFiles, Action.DELETE), count(extraFiles, Action.DEFER), count(extraFiles, Action.KEEP)));
+		sb.append(SyncProgress.formatBytes(bytes)).append(" to download");
+
+		if (bytes > 0L) {
+			sb.append(bytesPerSecond > 0D ? ", about %s at %s/s".formatted(SyncProgress.formatTime(bytes / bytesPerSecond), SyncProgress.formatBytes((long) bytesPerSecond)) : ", no throughput history for an estimate");
+		}
+
+		return sb.toString();
+	}
+
+	public void log(double bytesPerSecond) {
+		LOGGER.info("Update plan: " + summary(bytesPerSecond));
+
+		for (var entry : mods) {
+			if (entry.action() == Action.DOWNLOAD) {
+				LOGGER.info("  download mod " + entry.file().fileInfo());
+			}
+		}
+
+		for (var entry : extraFiles) {
+			if (entry.action() != Action.KEEP) {
+				LOGGER.info("  " + entry.action().name().toLowerCase(Locale.ROOT) + " " + entry.file().path());
+			}
+		}
+
+		for (var blob : modifiedBlobs) {
+			LOGGER.info("  discard repository file " + blob + ", it was modified through a hardlink");
+		}
+	}
+}
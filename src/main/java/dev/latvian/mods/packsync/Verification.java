@@ -0,0 +1,76 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import net.neoforged.fml.ModLoadingIssue;
+import net.neoforged.neoforgespi.IIssueReporting;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+public enum Verification {
+	NONE,
+	SIZE,
+	SAMPLED,
+	FULL;
+
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public static Verification of(JsonObject json, String key, Verification def) {
+		if (!json.has(key)) {
+			return def;
+		}
+
+		var name = json.get(key).getAsString().trim();
+
+		for (var verification : values()) {
+			if (verification.name().equalsIgnoreCase(name)) {
+				return verification;
+			}
+		}
+
+		LOGGER.warn("Invalid " + key + " '" + name + "', expected none, size, sampled or full. Using " + def.name().toLowerCase(Locale.ROOT));
+		return def;
+	}
+
+	@FunctionalInterface
+	private interface DigestCheck {
+		boolean matches() throws IOException;
+	}
+
+	public boolean matches(Path path, FileInfo fileInfo, byte[] sampled, IIssueReporting issues) {
+		try {
+			return check(path, fileInfo, sampled);
+		} catch (Exception ex) {
+			issues.addIssue(ModLoadingIssue.error("Failed to read checksum of file %s!", path.getFileName().toString()).withCause(ex).withAffectedPath(path));
+			return false;
+		}
+	}
+
+	// Unlike matches, a file that couldn't be read throws instead of counting as a mismatch
+	public boolean check(Path path, FileInfo fileInfo, byte[] sampled) throws IOException {
+		return check(path, fileInfo.size(), fileInfo.filename(), sampled, () -> Checksum.matches(Checksum.digest(path, Checksum.algorithm(fileInfo.checksum())), fileInfo.checksum()));
+	}
+
+	public boolean check(RepositoryFile file) throws IOException {
+		var path = file.path();
+		return check(path, file.size(), file.filename(), file.sampledDigest(), () -> Arrays.equals(Checksum.digest(path, Checksum.algorithm(file.digest())), file.digest()));
+	}
+
+	private boolean check(Path path, long size, String filename, byte[] sampled, DigestCheck full) throws IOException {
+		if (Files.notExists(path)) {
+			return false;
+		}
+
+		return switch (this) {
+			case NONE -> true;
+			case SIZE -> size == Files.size(path);
+			case SAMPLED -> size == Files.size(path) && (sampled.length == 0 ? full.matches() : Arrays.equals(Checksum.sampledDigest(path), sampled) && Checksum.isValidZip(path, filename));
+			case FULL -> size == Files.size(path) && full.matches();
+		};
+	}
+}
@@ -0,0 +1,204 @@
+package dev.latvian.mods.packsync;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.mojang.logging.LogUtils;
+import org.slf4j.Logger;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+public class VersionHistory {
+	private static final Logger LOGGER = LogUtils.getLogger();
+
+	public record Snapshot(String version, long time, List<RemoteFile> mods, List<RemoteFile> extraFiles) {
+		public Snapshot(JsonObject json) {
+			this(
+				json.get("version").getAsString(),
+				json.has("time") ? json.get("time").getAsLong() : 0L,
+				list(json.get("mods").getAsJsonArray()),
+				json.has("extra_files") ? list(json.get("extra_files").getAsJsonArray()) : List.of()
+			);
+		}
+
+		private static List<RemoteFile> list(JsonArray array) {
+			var list = new ArrayList<RemoteFile>(array.size());
+
+			for (var entry : array) {
+				list.add(new RemoteFile(entry.getAsJsonObject()));
+			}
+
+			return list;
+		}
+
+		private static JsonArray write(List<RemoteFile> files) {
+			var array = new JsonArray(files.size());
+
+			for (var file : files) {
+				var json = new JsonObject();
+				file.write(json);
+				array.add(json);
+			}
+
+			return array;
+		}
+
+		public JsonObject toJson() {
+			var json = new JsonObject();
+			json.addProperty("version", version);
+			json.addProperty("time", time);
+			json.add("mods", write(mods));
+			json.add("extra_files", write(extraFiles));
+			return json;
+		}
+
+		// Sync responses can leave mods out and only list changed extra files, so they're applied on top of this snapshot
+		public Snapshot update(String version, long time, List<RemoteFile> mods, List<RemoteFile> extraFiles) {
+			var files = new LinkedHashMap<String, RemoteFile>();
+
+			for (var file : this.extraFiles) {
+				files.put(file.path(), file);
+			}
+
+			for (var file : extraFiles) {
+				if (file.fileInfo().size() == 0L && file.fileInfo().filename().equals("deleted")) {
+					files.remove(file.path());
+				} else {
+					files.put(file.path(), file);
+				}
+			}
+
+			return new Snapshot(version, time, mods == null ? this.mods : mods, List.copyOf(files.values()));
+		}
+
+		public List<FileInfo> modList() {
+			var list = new ArrayList<FileInfo>(mods.size());
+
+			for (var mod : mods) {
+				list.add(mod.fileInfo());
+			}
+
+			list.sort((a, b) -> a.filename().compareToIgnoreCase(b.filename()));
+			return list;
+		}
+	}
+
+	public static String fileName(String version) {
+		var sb = new StringBuilder(version.length() + 5);
+
+		for (int i = 0; i < version.length(); i++) {
+			char c = version.charAt(i);
+			sb.append(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '.' || c == '-' ? c : '_');
+		}
+
+		return sb.append(".json").toString();
+	}
+
+	private final Path directory;
+	private final Gson gson;
+	private final int size;
+
+	public VersionHistory(Path directory, Gson gson, int size) {
+		this.directory = directory;
+		this.gson = gson;
+		this.size = size;
+	}
+
+	// A delta can only be turned into a snapshot when the installed version has one, otherwise the full pack is requested so history can start (or restart) from it
+	public String base(String version) {
+		if (size <= 0 || version.isEmpty() || load(version) != null) {
+			return version;
+		}
+
+		LOGGER.info("Pack Sync version snapshot '" + version + "' not found, requesting the full pack");
+		return "";
+	}
+
+	public Snapshot previous(String version) {
+		if (size <= 0) {
+			return null;
+		} else if (version.isEmpty()) {
+			return new Snapshot("", 0L, List.of(), List.of());
+		}
+
+		var snapshot = load(version);
+
+		if (snapshot == null) {
+			LOGGER.warn("Pack Sync version snapshot '" + version + "' not found, the next one can't be built from this update");
+		}
+
+		return snapshot;
+	}
+
+	public Snapshot load(String version) {
+		var path = directory.resolve(fileName(version));
+
+		if (version.isEmpty() || Files.notExists(path)) {
+			return null;
+		}
+
+		try (var reader = Files.newBufferedReader(path)) {
+			return new Snapshot(gson.fromJson(reader, JsonObject.class));
+		} catch (Exception ex) {
+			LOGGER.error("Failed to read Pack Sync version snapshot " + path, ex);
+			return null;
+		}
+	}
+
+	public List<Snapshot> list() {
+		var list = new ArrayList<Snapshot>();
+
+		if (Files.notExists(directory)) {
+			return list;
+		}
+
+		try (var stream = Files.list(directory)) {
+			for (var path : stream.filter(p -> p.getFileName().toString().endsWith(".json")).toList()) {
+				try (var reader = Files.newBufferedReader(path)) {
+					list.add(new Snapshot(gson.fromJson(reader, JsonObject.class)));
+				} catch (Exception ex) {
+					LOGGER.warn("Ignoring broken Pack Sync version snapshot " + path);
+				}
+			}
+		} catch (Exception ex) {
+			LOGGER.error("Failed to list Pack Sync version history", ex);
+		}
+
+		list.sort(Comparator.comparingLong(Snapshot::time).reversed());
+		return list;
+	}
+
+	public void save(Snapshot snapshot) {
+		if (size <= 0) {
+			return;
+		}
+
+		try {
+			Files.createDirectories(directory);
+			var path = directory.resolve(fileName(snapshot.version()));
+			var tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+			try (var writer = Files.newBufferedWriter(tempPath)) {
+				gson.toJson(snapshot.toJson(), writer);
+			}
+
+			Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING);
+
+			var snapshots = list();
+
+			for (int i = size; i < snapshots.size(); i++) {
+				var old = snapshots.get(i);
+				LOGGER.info("Removing old Pack Sync version snapshot '" + old.version() + "'");
+				Files.deleteIfExists(directory.resolve(fileName(old.version())));
+			}
+		} catch (Exception ex) {
+			LOGGER.error("Failed to save Pack Sync version snapshot '" + snapshot.version() + "'", ex);
+		}
+	}
+}